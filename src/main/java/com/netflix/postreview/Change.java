@@ -19,20 +19,38 @@ import com.atlassian.theplugin.commons.crucible.api.UploadItem;
 import com.atlassian.theplugin.commons.crucible.api.model.BasicReview;
 
 import java.io.IOException;
-import java.util.List;
+import java.io.OutputStream;
 
 /**
- * Abstract representation of an SCM change that will be posted to Crucible.
+ * Abstract representation of an SCM change that will be posted to Crucible. The content is streamed out file by
+ * file rather than returned whole, so memory use does not grow with the size of the change.
  */
 public interface Change {
 
+    /**
+     * Receives upload items as they are made. May be called from several threads, and may block to hold the
+     * producer back.
+     */
+    interface ItemSink {
+        void put(UploadItem item) throws IOException;
+    }
+
     String getId();
 
     boolean isSubmitted();
 
     String getDescription();
 
-    List<UploadItem> makeUploadItems(BasicReview review) throws IOException;
-
-    String makePatch(BasicReview review) throws IOException;
+    /**
+     * Makes the file pairs to upload, handing each one to the sink as soon as its content is fetched, in no
+     * particular order. The review is the one being updated, or null when creating one or when it isn't located
+     * yet, so items may be made while the review is looked up.
+     */
+    void makeUploadItems(BasicReview review, ItemSink sink) throws IOException;
+
+    /**
+     * Writes the change as a patch a file at a time, in the PatchWriter charset, with the review as for
+     * makeUploadItems.
+     */
+    void makePatch(BasicReview review, OutputStream out) throws IOException;
 }
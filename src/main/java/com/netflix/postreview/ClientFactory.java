@@ -32,6 +32,8 @@ public final class ClientFactory extends HttpSessionCallbackImpl {
     private static final int CONNECTION_MANAGER_TIMEOUT = 80000;
     private static final int CONNECTION_TIMEOUT = 30000;
     private static final int DATA_TIMOUT = 10000;
+    private static final int MAX_DATA_TIMEOUT = 600000;
+    private static final int MIN_BYTES_PER_SECOND = 32 * 1024;
 
     private static final int TOTAL_MAX_CONNECTIONS = 50;
 
@@ -39,6 +41,9 @@ public final class ClientFactory extends HttpSessionCallbackImpl {
     private static int dataTimeout = DATA_TIMOUT;
     private static int connectionTimeout = CONNECTION_TIMEOUT;
     private static int connectionManagerTimeout = CONNECTION_MANAGER_TIMEOUT;
+    private static boolean compressRequests = true;
+    private static String transportName = "httpclient";
+    private static HttpTransport transport;
 
     static {
         connectionManager = new MultiThreadedHttpConnectionManager();
@@ -50,6 +55,63 @@ public final class ClientFactory extends HttpSessionCallbackImpl {
     ClientFactory() {
     }
 
+    /**
+     * Raises or lowers the number of concurrent connections allowed to the Crucible server, e.g. to match the
+     * number of parallel uploads.
+     */
+    public static void setMaxConnectionsPerHost(int maxConnections) {
+        connectionManager.getParams().setDefaultMaxConnectionsPerHost(Math.max(1, maxConnections));
+    }
+
+    public static int getMaxConnectionsPerHost() {
+        return connectionManager.getParams().getDefaultMaxConnectionsPerHost();
+    }
+
+    /**
+     * Selects the transport for the requests post2crucible makes itself: "httpclient" for the pooled
+     * commons-httpclient connections, or "jdk" for HttpURLConnection.
+     */
+    public static synchronized void setTransport(String name) {
+        if (!name.equals("httpclient") && !name.equals("jdk")) {
+            throw new IllegalArgumentException("Unknown transport: " + name);
+        }
+        transportName = name;
+        transport = null;
+    }
+
+    public static synchronized HttpTransport getTransport() {
+        if (transport == null) {
+            transport = transportName.equals("jdk")
+                    ? new UrlConnectionTransport(getMaxConnectionsPerHost())
+                    : new HttpClientTransport();
+        }
+        return transport;
+    }
+
+    public static int getConnectionTimeout() {
+        return connectionTimeout;
+    }
+
+    /**
+     * Enables or disables gzipping of upload request bodies. Compression is still dropped for the rest of a
+     * session if the server turns down a compressed request.
+     */
+    public static void setCompressRequests(boolean compress) {
+        compressRequests = compress;
+    }
+
+    public static boolean isCompressRequests() {
+        return compressRequests;
+    }
+
+    /**
+     * Returns the data timeout for a request carrying the given number of bytes: the usual timeout plus time to
+     * move the payload at a slow but acceptable rate, so big uploads are not cut off while the server works.
+     */
+    public static int dataTimeoutFor(long payloadBytes) {
+        return (int) Math.min(MAX_DATA_TIMEOUT, dataTimeout + payloadBytes * 1000 / MIN_BYTES_PER_SECOND);
+    }
+
     public static HttpClient getClient() throws HttpProxySettingsException {
         HttpClient httpClient = new HttpClient(connectionManager);
         httpClient.getParams().setConnectionManagerTimeout(connectionManagerTimeout);
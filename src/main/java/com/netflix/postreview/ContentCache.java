@@ -0,0 +1,305 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * On-disk cache of immutable file contents, such as depot file revisions and git blobs, keyed by a string that
+ * names the content exactly. Entries are stored deflated, read back through a memory map, and evicted least
+ * recently used first once the cache grows beyond its size cap. The cache is best effort: any problem reading
+ * or writing an entry is treated as a miss.
+ */
+public class ContentCache {
+    private static final int MAGIC = 0x50324301;  // "P2C" v1
+
+    private final File dir;
+    private final long maxBytes;
+    private long totalBytes = -1;  // computed on first write
+
+    public ContentCache(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cached content for a key, or null if it is not cached.
+     */
+    public byte[] get(String key) {
+        File file = fileFor(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            byte[] content = read(file, key);
+            if (content != null) {
+                file.setLastModified(System.currentTimeMillis());  // recency for LRU eviction
+            }
+            return content;
+        } catch (IOException e) {
+            file.delete();  // corrupt or truncated, drop it
+            return null;
+        }
+    }
+
+    /**
+     * Stores content for a key, evicting older entries if this takes the cache over its cap.
+     */
+    public void put(String key, byte[] content) {
+        File file = fileFor(key);
+        if (file.isFile()) {
+            return;  // immutable content, already there
+        }
+        try {
+            file.getParentFile().mkdirs();
+            File temp = File.createTempFile("entry", ".tmp", file.getParentFile());
+            try {
+                write(temp, key, content);
+                if (!temp.renameTo(file)) {
+                    return;  // another process stored it first
+                }
+            } finally {
+                temp.delete();
+            }
+            added(file.length());
+        } catch (IOException e) {
+            // Can't cache it, but not much we can do about it, so just carry on.
+        }
+    }
+
+    private File fileFor(String key) {
+        String hash = sha1Hex(key);
+        return new File(new File(dir, hash.substring(0, 2)), hash.substring(2));
+    }
+
+    private static String sha1Hex(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(40);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Entry format: magic, key length, key (UTF-8), content length, deflated content
+
+    private static void write(File file, String key, byte[] content) throws IOException {
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        try {
+            byte[] keyBytes = key.getBytes("UTF-8");
+            out.writeInt(MAGIC);
+            out.writeInt(keyBytes.length);
+            out.write(keyBytes);
+            out.writeInt(content.length);
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                DeflaterOutputStream deflated = new DeflaterOutputStream(out, deflater, 8192);
+                deflated.write(content);
+                deflated.finish();
+            } finally {
+                deflater.end();
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    private static byte[] read(File file, String key) throws IOException {
+        ByteBuffer entry = map(file, key);
+        if (entry == null) {
+            return null;  // hash collision, treat as a miss
+        }
+        byte[] content = new byte[entry.getInt()];
+        InputStream in = new EntryInputStream(entry);
+        try {
+            int off = 0;
+            while (off < content.length) {
+                int n = in.read(content, off, content.length - off);
+                if (n == -1) throw new IOException("Truncated cache entry: " + file);
+                off += n;
+            }
+        } finally {
+            in.close();
+        }
+        return content;
+    }
+
+    /**
+     * Maps an entry and checks its header, returning the buffer positioned at the content length, or null if
+     * the entry belongs to a different key.
+     */
+    private static ByteBuffer map(File file, String key) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer map = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if (map.getInt() != MAGIC) throw new IOException("Bad cache entry: " + file);
+            byte[] keyBytes = new byte[map.getInt()];
+            map.get(keyBytes);
+            return Arrays.equals(keyBytes, key.getBytes("UTF-8")) ? map : null;
+        } finally {
+            raf.close();  // the mapping stays valid after the file is closed
+        }
+    }
+
+    /**
+     * Returns a source that streams a cached entry straight out of its memory map, or null if it is not cached.
+     * The source keeps the mapping it was created with, so it can still be read after the entry is evicted or
+     * replaced, by this run or another one sharing the cache: the mapped file lives on until it is unmapped.
+     */
+    public ContentSource source(final String key) {
+        final File file = fileFor(key);
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            ByteBuffer header = map(file, key);
+            if (header == null) {
+                return null;
+            }
+            final long length = header.getInt();
+            final ByteBuffer deflated = header.slice();
+            file.setLastModified(System.currentTimeMillis());
+            return new ContentSource() {
+                public long length() { return length; }
+                public InputStream open() {
+                    return new EntryInputStream(deflated.duplicate());
+                }
+                @Override public String toString() { return key; }
+            };
+        } catch (IOException e) {
+            file.delete();
+            return null;
+        }
+    }
+
+    /**
+     * Inflates the remaining bytes of a mapped entry, releasing the inflater when closed.
+     */
+    private static class EntryInputStream extends InflaterInputStream {
+        EntryInputStream(ByteBuffer entry) {
+            super(new BufferInputStream(entry), new Inflater(), 8192);
+        }
+
+        @Override public void close() throws IOException {
+            super.close();
+            inf.end();
+        }
+    }
+
+    /**
+     * Presents the remaining bytes of a buffer as a stream.
+     */
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
+
+        BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        public int read(byte[] b, int off, int len) {
+            if (!buffer.hasRemaining()) return -1;
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+    }
+
+    // Size tracking and LRU eviction
+
+    private synchronized void added(long bytes) {
+        if (totalBytes < 0) {
+            totalBytes = 0;
+            for (File entry : entries()) {
+                totalBytes += entry.length();
+            }
+        } else {
+            totalBytes += bytes;
+        }
+        if (totalBytes > maxBytes) {
+            evict(maxBytes - maxBytes / 4);
+        }
+    }
+
+    /**
+     * Deletes least recently used entries until the cache is at or below the target size.
+     */
+    private void evict(long targetBytes) {
+        List<File> files = entries();
+        final long[] lastUsed = new long[files.size()];
+        Integer[] order = new Integer[files.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+            lastUsed[i] = files.get(i).lastModified();
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return lastUsed[a] < lastUsed[b] ? -1 : (lastUsed[a] > lastUsed[b] ? 1 : 0);
+            }
+        });
+        for (int i = 0; i < order.length && totalBytes > targetBytes; i++) {
+            File file = files.get(order[i]);
+            long length = file.length();
+            if (file.delete()) {
+                totalBytes -= length;
+            }
+        }
+    }
+
+    private List<File> entries() {
+        List<File> entries = new ArrayList<File>();
+        File[] subdirs = dir.listFiles();
+        if (subdirs != null) {
+            for (File subdir : subdirs) {
+                File[] files = subdir.listFiles();
+                if (files != null) {
+                    for (File file : files) {
+                        if (!file.getName().endsWith(".tmp")) entries.add(file);
+                    }
+                }
+            }
+        }
+        return entries;
+    }
+
+}
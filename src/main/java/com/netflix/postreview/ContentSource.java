@@ -0,0 +1,82 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A source of file content with a known length that can be streamed more than once, so that content can be
+ * uploaded from where it already lives (a local file, a cache entry) instead of being loaded into a byte array.
+ */
+public abstract class ContentSource {
+
+    public abstract long length();
+
+    public abstract InputStream open() throws IOException;
+
+    /**
+     * Reads the whole content into memory, for consumers that need a byte array.
+     */
+    public byte[] bytes() throws IOException {
+        if (length() > Integer.MAX_VALUE) {
+            throw new IOException("Content too large to read into memory: " + this);
+        }
+        return Runner.readAll(open(), (int) length()).bytes();
+    }
+
+    /**
+     * Copies the whole content to a stream.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        InputStream in = open();
+        try {
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    public static ContentSource of(final byte[] bytes) {
+        return new ContentSource() {
+            public long length() { return bytes.length; }
+            public InputStream open() { return new ByteArrayInputStream(bytes); }
+            @Override public byte[] bytes() { return bytes; }
+        };
+    }
+
+    /**
+     * Returns a source for a local file. The length is taken now, so the file should not change before it is read.
+     */
+    public static ContentSource of(final File file) {
+        final long length = file.length();
+        return new ContentSource() {
+            public long length() { return length; }
+            public InputStream open() throws IOException { return new BufferedInputStream(new FileInputStream(file)); }
+            @Override public String toString() { return file.toString(); }
+        };
+    }
+
+}
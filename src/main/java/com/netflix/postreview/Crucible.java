@@ -21,22 +21,19 @@ import com.atlassian.theplugin.commons.cfg.ServerCfg;
 import com.atlassian.theplugin.commons.cfg.ServerIdImpl;
 import com.atlassian.theplugin.commons.crucible.api.UploadItem;
 import com.atlassian.theplugin.commons.crucible.api.model.BasicReview;
-import com.atlassian.theplugin.commons.crucible.api.model.CustomFilterBean;
-import com.atlassian.theplugin.commons.crucible.api.model.PatchAnchorDataBean;
 import com.atlassian.theplugin.commons.crucible.api.model.PermId;
 import com.atlassian.theplugin.commons.crucible.api.model.Review;
 import com.atlassian.theplugin.commons.crucible.api.model.State;
 import com.atlassian.theplugin.commons.crucible.api.model.User;
 import com.atlassian.theplugin.commons.remoteapi.RemoteApiException;
+import com.atlassian.theplugin.commons.remoteapi.RemoteApiLoginException;
+import com.atlassian.theplugin.commons.remoteapi.RemoteApiSessionExpiredException;
 import com.atlassian.theplugin.commons.util.Logger;
 import com.atlassian.theplugin.commons.util.LoggerImpl;
 
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.Writer;
+import java.io.File;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -61,6 +58,11 @@ public class Crucible {
     final String baseUrl;
     ExtendedCrucibleSession session;
 
+    // Negative index entries expire quickly, since a review may be created from elsewhere at any time
+    private static final long MISSING_TTL = 10 * 60 * 1000L;
+    private static final File indexFile = new File(System.getProperty("user.home"), ".post2crucible.index");
+    private final ReviewIndex index = ReviewIndex.load(indexFile, MISSING_TTL);
+
     /**
      * Constructs a new Crucible client instance ready to be connected to the server using login().
      */
@@ -84,29 +86,18 @@ public class Crucible {
         return new ExtendedCrucibleSession(createServerData(serverCfg), new ClientFactory(), logger);
     }
 
-    private static String tokenFile = System.getProperty("user.home") + "/.post2crucible.token";
+    // Tokens that worked within this window are used without checking them first
+    private static final long FRESH_WINDOW = 24 * 60 * 60 * 1000L;
+    private static final long TOKEN_LIFETIME = 30 * 24 * 60 * 60 * 1000L;
+    private static final TokenStore tokens = new TokenStore(
+            new File(System.getProperty("user.home"), ".post2crucible.tokens"),
+            new File(System.getProperty("user.home"), ".post2crucible.token"));
 
-    private String loadAuthToken() {
-        try {
-            String authToken = Runner.readFileString(tokenFile).trim();
-            //System.out.println("Loaded authToken: " + authToken);
-            return authToken;
-        } catch (IOException e) {
-            // OK, no token file
-            return null;
-        }
-    }
-
-    private void saveAuthToken(String authToken) {
-        try {
-            Writer fw = new FileWriter(tokenFile);
-            fw.write(authToken);
-            fw.close();
-            //System.out.println("Saved authToken: " + authToken);
-        } catch (IOException e) {
-            // Can't save the token, but not much we can do about it, so just carry on.
-        }
-    }
+    private String user;
+    private String passwd;
+    private boolean tokenUnchecked;  // using a saved token that no request has confirmed yet
+    private boolean tokenConfirmed;  // a request has succeeded with the current token
+    private Thread loginThread;  // the thread that logged in, the only one that may prompt for a password
 
     private static String promptPassword() {
         java.io.Console console = System.console();
@@ -119,33 +110,37 @@ public class Crucible {
 
 
     /**
-     * Creates a new Crucible session and logs in the given user with the given password.
+     * Creates a new Crucible session and logs in the given user with the given password. Without a password, a
+     * saved token is used: as is if it worked recently, otherwise after checking it with the server. A fresh
+     * token that turns out to be bad is replaced by logging in again on the first failed request.
      */
     public void login(String user, String passwd, boolean forceLogin) throws RemoteApiException {
-
-        // Get the session object created and ready to log in
-        session = createCrucibleSession(baseUrl, user, passwd);
+        this.user = user;
+        this.passwd = passwd;
+        loginThread = Thread.currentThread();
 
         // if a password was provided, just use it to log in
         if (passwd != null) {
-            session.isLoggedIn();  // trigger login, get token, throw an exception if failure
-            // If that went OK, then write the auth token for later use
-            if (session.getAuthToken() != null) {
-                saveAuthToken(session.getAuthToken());
+            if (loginWithPassword(passwd)) {
                 return;
             }
         }
 
         // No password, see if we have an auth token saved
-        String authToken = forceLogin ? null : loadAuthToken();
+        TokenStore.Token token = forceLogin ? null : tokens.load(tokenScope());
 
-        // Have an auth toke to try. Need to poke the server to see if it is ok
-        if (authToken != null) {
+        // Have an auth toke to try. Only poke the server to see if it is ok if it hasn't worked lately
+        if (token != null) {
             session = createCrucibleSession(baseUrl, user, "");  // need non-null password to proceed
-            session.setAuthToken(authToken);
+            session.setAuthToken(token.token);
+            if (token.isFresh(FRESH_WINDOW)) {
+                tokenUnchecked = true;
+                return;  // recently good, any problem is handled on the first request
+            }
             try {
                 // Pre-validate token by poking an exiting CR to work around: http://jira.atlassian.com/browse/CRUC-1452
                 session.checkUser(user);
+                tokens.validated(tokenScope(), token.token, TOKEN_LIFETIME);
                 return;  // loaded auth token looks good, all done here.
             } catch (RemoteApiException e) {
                 e.printStackTrace();  // Auth problem? Or just bad approach?
@@ -154,13 +149,80 @@ public class Crucible {
         }
 
         // No auth token, no password given, need to prompt for real password and try again
-        passwd = promptPassword();
+        loginWithPassword(promptPassword());
+    }
+
+    /**
+     * Logs in with a password, saving the new auth token. Returns false if no token was issued.
+     */
+    private boolean loginWithPassword(String passwd) throws RemoteApiException {
         session = createCrucibleSession(baseUrl, user, passwd);
         session.isLoggedIn();  // trigger login, get token, throw an exception if failure
+        tokenUnchecked = false;
+        tokenConfirmed = false;
         if (session.getAuthToken() != null) {
-            saveAuthToken(session.getAuthToken());
-            return;  // new login has created a token, good to go.
+            tokens.save(tokenScope(), session.getAuthToken(), TOKEN_LIFETIME);
+            return true;  // new login has created a token, good to go.
         }
+        return false;
+    }
+
+    private String tokenScope() {
+        return baseUrl + "|" + user;
+    }
+
+    /**
+     * A request to make through call().
+     */
+    private abstract class Call<T> {
+        abstract T call() throws RemoteApiException;
+    }
+
+    /**
+     * Makes a request, logging in again and retrying once if an unchecked saved token is turned down. Only the
+     * thread that logged in does this, as it may prompt for the password. Other threads rethrow the failure for
+     * it to recover from with relogin().
+     */
+    private <T> T call(Call<T> request) throws RemoteApiException {
+        try {
+            T result = request.call();
+            tokenConfirmed = true;
+            tokenUnchecked = false;
+            return result;
+        } catch (RemoteApiException e) {
+            if (!isTokenRejected(e) || Thread.currentThread() != loginThread) {
+                throw e;
+            }
+            relogin();
+            T result = request.call();
+            tokenConfirmed = true;
+            return result;
+        }
+    }
+
+    /**
+     * Returns true if a request failed because the saved token it was made with, not yet confirmed by any
+     * request, was turned down.
+     */
+    public boolean isTokenRejected(Exception e) {
+        return tokenUnchecked && (e instanceof RemoteApiLoginException || e instanceof RemoteApiSessionExpiredException);
+    }
+
+    /**
+     * Logs in again after the saved token was turned down, prompting for the password unless one was given. Only
+     * to be called on the thread that logged in.
+     */
+    public void relogin() throws RemoteApiException {
+        System.out.println("Saved login is no longer valid, logging in again.");
+        tokens.remove(tokenScope(), session.getAuthToken());
+        loginWithPassword(passwd != null ? passwd : promptPassword());
+    }
+
+    /**
+     * Opens connections to the server for the given number of parallel requests ahead of time.
+     */
+    public void warmUp(int connections) {
+        session.warmUp(connections);
     }
 
     private static final int MAX_DESCRIPTION = 120;
@@ -209,25 +271,56 @@ public class Crucible {
     }
 
     /**
-     * Finds the best review as a BasicReview for a given changeId and author.
+     * Finds the best review as a BasicReview for a given changeId and author. The local review index is tried
+     * first, with a hit validated against the server. Streaming through the author's open reviews is the
+     * fallback, and indexes every review seen along the way. The scan stops at the first match, so the open
+     * reviews after it are not read and so not indexed. A turned down saved token is rethrown, see call().
      */
-    public BasicReview findReview(String changeId, String author) {
+    public BasicReview findReview(String changeId, String author) throws RemoteApiException {
+        final String scope = baseUrl + "|" + author;
+        BasicReview indexed = findIndexedReview(scope, changeId);
+        if (indexed != null) {
+            return indexed;
+        }
+        if (index.isKnownMissing(scope, changeId)) {
+            System.out.println("No review for change " + changeId + " (indexed)");
+            return null;
+        }
         try {
-            CustomFilterBean customFilter = new CustomFilterBean();
-            customFilter.setAuthor(author);
-            customFilter.setState(new State[] {State.DRAFT, State.REVIEW});
-            List<BasicReview> reviews = session.getReviewsForCustomFilter(customFilter);
-            System.out.println("Scanning " + reviews.size() + " reviews for a review of change " + changeId);
-            for (BasicReview r : reviews) {
-                System.out.println("    (" + r.getPermId().getId() + " '" + r.getName() + "')");
-                String cid = changeIdFromTitle(r.getName());
-                if (cid != null && (cid.startsWith(changeId) || changeId.startsWith(cid))) {
-                    System.out.println("Found review: " + r.getPermId().getId() + " '" + r.getName() + "'");
-                    return r;
+            final String wanted = changeId;
+            final BasicReview[] found = new BasicReview[1];
+            System.out.println("Scanning reviews for a review of change " + changeId);
+            final String scanAuthor = author;
+            final CrucibleXml.ReviewVisitor visitor = new CrucibleXml.ReviewVisitor() {
+                public boolean visit(BasicReview r) {
+                    System.out.println("    (" + r.getPermId().getId() + " '" + r.getName() + "')");
+                    String cid = r.getName() != null ? changeIdFromTitle(r.getName()) : null;
+                    if (cid != null) {
+                        index.put(scope, cid, r.getPermId().getId());
+                        if (cid.startsWith(wanted) || wanted.startsWith(cid)) {
+                            System.out.println("Found review: " + r.getPermId().getId() + " '" + r.getName() + "'");
+                            found[0] = r;
+                            return false;  // no need to read the rest
+                        }
+                    }
+                    return true;
+                }
+            };
+            call(new Call<Void>() {
+                Void call() throws RemoteApiException {
+                    session.scanReviews(scanAuthor, new State[] {State.DRAFT, State.REVIEW}, visitor);
+                    return null;
                 }
+            });
+            if (found[0] == null) {
+                index.putMissing(scope, changeId);
             }
-            return null;
+            index.save();
+            return found[0];
         } catch (RemoteApiException e) {
+            if (isTokenRejected(e)) {
+                throw e;
+            }
             System.out.println("Find review problem: " + e);
             logger.log(LoggerImpl.LOG_ERR, null, e);
         }
@@ -235,28 +328,77 @@ public class Crucible {
     }
 
     /**
-     * Retrieves a (full) Review object given a BasicReview.
+     * Returns the indexed review for a change if it is still open and still titled for that change, dropping a
+     * stale index entry otherwise.
+     */
+    private BasicReview findIndexedReview(String scope, String changeId) throws RemoteApiException {
+        final String revKey = index.find(scope, changeId);
+        if (revKey == null) {
+            return null;
+        }
+        try {
+            BasicReview r = call(new Call<BasicReview>() {
+                BasicReview call() throws RemoteApiException {
+                    return session.getBasicReview(new PermId(revKey));
+                }
+            });
+            String cid = r.getName() != null ? changeIdFromTitle(r.getName()) : null;
+            if ((r.getState() == State.DRAFT || r.getState() == State.REVIEW)
+                    && cid != null && (cid.startsWith(changeId) || changeId.startsWith(cid))) {
+                System.out.println("Found review: " + revKey + " '" + r.getName() + "' (indexed)");
+                return r;
+            }
+        } catch (RemoteApiException e) {
+            if (isTokenRejected(e)) {
+                throw e;  // says nothing about the review, keep its entry
+            }
+            logger.log(LoggerImpl.LOG_ERR, null, e);
+        }
+        index.removeReview(scope, revKey);
+        index.save();
+        return null;
+    }
+
+    /**
+     * Adds a newly created review to the local review index.
      */
-    public Review getReview(BasicReview br) throws RemoteApiException {
+    private void indexReview(BasicReview review) {
+        String cid = review.getName() != null ? changeIdFromTitle(review.getName()) : null;
+        if (cid != null && review.getAuthor() != null) {
+            String scope = baseUrl + "|" + review.getAuthor().getUsername();
+            index.remove(scope, cid);
+            index.put(scope, cid, review.getPermId().getId());
+            index.save();
+        }
+    }
+
+    /**
+     * Retrieves the basic fields of a review given a BasicReview.
+     */
+    public BasicReview getReview(BasicReview br) throws RemoteApiException {
         return getReview(br.getPermId());
     }
 
     /**
-     * Retrieves a (full) Review object given a rev key string.
+     * Retrieves the basic fields of a review given a rev key string.
      */
-    public Review getReview(String revKey) throws RemoteApiException {
+    public BasicReview getReview(String revKey) throws RemoteApiException {
         return getReview(new PermId(revKey));
     }
 
     /**
-     * Retrieves a (full) Review object given a permId.
+     * Retrieves the basic fields of a review given a permId.
      */
-    public Review getReview(PermId permId) throws RemoteApiException {
+    public BasicReview getReview(final PermId permId) throws RemoteApiException {
         try {
-            System.out.println("Retrieving review for update: " + permId);
-            return session.getReview(permId);
+            System.out.println("Retrieving review for update: " + permId.getId());
+            return call(new Call<BasicReview>() {
+                BasicReview call() throws RemoteApiException {
+                    return session.getBasicReview(permId);
+                }
+            });
         } catch (RemoteApiException e) {
-            System.out.println("Review not found: " + permId);
+            System.out.println("Review not found: " + permId.getId());
             logger.log(LoggerImpl.LOG_ERR, null, e);
             throw e;
         }
@@ -266,15 +408,62 @@ public class Crucible {
      * Adds upload items to an existing retrieved review.
      */
     public void updateReviewWithItems(BasicReview review, Collection<UploadItem> items) throws RemoteApiException {
-        session.addItemsToReview(review.getPermId(), items);
+        updateReviewWithItems(review, items, null);
+    }
+
+    /**
+     * Adds upload items to an existing retrieved review, notifying the listener as each one is acknowledged.
+     */
+    public void updateReviewWithItems(final BasicReview review, final Collection<UploadItem> items,
+            final UploadListener listener) throws RemoteApiException {
+        call(new Call<Void>() {
+            Void call() throws RemoteApiException {
+                session.addItemsToReview(review.getPermId(), items, listener);
+                return null;
+            }
+        });
         System.out.println("Updated review: " + review.getPermId().getId() + " '" + review.getName() + "'");
     }
 
     /**
-     * Adds a patch to an existing retrieved review.
+     * Adds upload items to an existing retrieved review as they arrive on a queue, notifying the listener as each
+     * one is acknowledged. A queue can only be taken from once, so this upload is never retried: an unchecked
+     * saved token is confirmed before the queue is read, and a login turned down part way through fails it.
      */
-    public void updateReviewWithPatch(BasicReview review, String depot, String patch) throws RemoteApiException {
-        session.addPatchToReview(review.getPermId(), "depot", patch);
+    public void updateReviewWithItems(final BasicReview review, final UploadQueue queue,
+            final UploadListener listener) throws RemoteApiException {
+        if (tokenUnchecked) {
+            call(new Call<Void>() {
+                Void call() throws RemoteApiException {
+                    session.checkUser(user);
+                    return null;
+                }
+            });
+        }
+        try {
+            session.addItemsToReview(review.getPermId(), queue, listener);
+        } catch (RemoteApiLoginException e) {
+            throw new RemoteApiLoginException("Login turned down part way through the upload to "
+                    + review.getPermId().getId() + ", run again with --resume to upload the rest: " + e.getMessage(), e);
+        } catch (RemoteApiSessionExpiredException e) {
+            throw new RemoteApiSessionExpiredException("Session expired part way through the upload to "
+                    + review.getPermId().getId() + ", run again with --resume to upload the rest: " + e.getMessage(), e);
+        }
+        tokenConfirmed = true;
+        System.out.println("Updated review: " + review.getPermId().getId() + " '" + review.getName() + "'");
+    }
+
+    /**
+     * Adds a patch to an existing retrieved review, streaming it from its source.
+     */
+    public void updateReviewWithPatch(final BasicReview review, String depot, final ContentSource patch)
+            throws RemoteApiException {
+        call(new Call<Void>() {
+            Void call() throws RemoteApiException {
+                session.addPatchToReview(review.getPermId(), "depot", null, patch);
+                return null;
+            }
+        });
         System.out.println("Updated review: " + review.getPermId().getId() + " '" + review.getName() + "'");
     }
 
@@ -283,12 +472,27 @@ public class Crucible {
      * Review addFileRevisionsToReview(PermId permId, String repository, List<PathAndRevision> revisions)
      */
 
+    /**
+     * Creates a brand-new empty review given a new review instance.
+     */
+    public BasicReview createReview(final Review review) throws RemoteApiException {
+        BasicReview response = call(new Call<BasicReview>() {
+            BasicReview call() throws RemoteApiException {
+                return session.createReview(review);
+            }
+        });
+        indexReview(response);
+        System.out.println("New review: " + response.getPermId().getId() + " '" + response.getName() + "'");
+        return response;
+    }
+
     /**
      * Creates a brand-new review given a new review instance and a list of update items.
      */
     public BasicReview createReviewWithItems(Review review, Collection<UploadItem> items) throws RemoteApiException {
-        BasicReview response = session.createReviewFromUpload(review, items);
-        System.out.println("New review: " + response.getPermId().getId() + " '" + response.getName() + "'");
+        // Create the review, then add the items through our own streaming, concurrent upload
+        BasicReview response = createReview(review);
+        session.addItemsToReview(response.getPermId(), items);
         return response;
         //TODO: see:
         //  session.
@@ -296,19 +500,62 @@ public class Crucible {
     }
 
     /**
-     * Creates a brand-new review given a new review instance and a patch.
+     * Creates a brand-new review given a new review instance and a patch. The review is created empty and the
+     * patch then streamed into it, as the connector library only takes a patch held in a string. If the patch
+     * can't be added, the empty review is abandoned so a later run creates a fresh one.
      */
-    public BasicReview createReviewWithPatch(Review review, String patch) throws RemoteApiException {
-        BasicReview response = session.createReviewFromPatch(review, patch, new PatchAnchorDataBean(review.getRepoName(), "/", ""));
-        System.out.println("New review: " + response.getPermId().getId() + " '" + response.getName() + "'");
+    public BasicReview createReviewWithPatch(final Review review, final ContentSource patch) throws RemoteApiException {
+        final BasicReview response = createReview(review);
+        try {
+            call(new Call<Void>() {
+                Void call() throws RemoteApiException {
+                    session.addPatchToReview(response.getPermId(), review.getRepoName(), "/", patch);
+                    return null;
+                }
+            });
+        } catch (RemoteApiException e) {
+            abandonEmptyReview(response);
+            throw e;
+        } catch (RuntimeException e) {
+            abandonEmptyReview(response);
+            throw e;
+        }
         return response;
     }
 
+    /**
+     * Abandons a newly created review that its content could not be added to, and drops it from the local index.
+     */
+    public void abandonEmptyReview(final BasicReview review) {
+        final String revKey = review.getPermId().getId();
+        if (review.getAuthor() != null) {
+            index.removeReview(baseUrl + "|" + review.getAuthor().getUsername(), revKey);
+            index.save();
+        }
+        try {
+            call(new Call<Void>() {
+                Void call() throws RemoteApiException {
+                    session.abandonReview(review.getPermId());
+                    return null;
+                }
+            });
+            System.out.println("Abandoned empty review: " + revKey);
+        } catch (RemoteApiException e) {
+            System.out.println("Review " + revKey + " was left empty and could not be abandoned: " + e.getMessage()
+                    + ". Please abandon it by hand.");
+        }
+    }
+
     /**
      * Creates a brand-new review given a new review instance and a single submitted CL.
      */
-    public BasicReview createReviewWithCl(Review review, String changeId) throws RemoteApiException {
-        BasicReview response = session.createReviewFromRevision(review, Arrays.asList(changeId));
+    public BasicReview createReviewWithCl(final Review review, final String changeId) throws RemoteApiException {
+        BasicReview response = call(new Call<BasicReview>() {
+            BasicReview call() throws RemoteApiException {
+                return session.createReviewFromRevision(review, Arrays.asList(changeId));
+            }
+        });
+        indexReview(response);
         System.out.println("New review: " + response.getPermId().getId() + " '" + response.getName() + "'");
         return response;
     }
@@ -318,6 +565,9 @@ public class Crucible {
      * Logout from the server and terminate the session.
      */
     public void logout() throws RemoteApiException {
+        if (tokenConfirmed && session.getAuthToken() != null) {
+            tokens.validated(tokenScope(), session.getAuthToken(), TOKEN_LIFETIME);
+        }
         session.logout();
         session = null;
     }
@@ -0,0 +1,216 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import com.atlassian.theplugin.commons.crucible.api.model.BasicReview;
+import com.atlassian.theplugin.commons.crucible.api.model.PermId;
+import com.atlassian.theplugin.commons.crucible.api.model.State;
+import com.atlassian.theplugin.commons.crucible.api.model.User;
+import com.atlassian.theplugin.commons.remoteapi.RemoteApiException;
+import com.atlassian.theplugin.commons.remoteapi.RemoteApiSessionExpiredException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+
+/**
+ * Streaming StAX readers for the few Crucible REST responses post2crucible uses. Only the fields we need are
+ * bound, everything else is skipped without building a tree, and reading stops as soon as the caller has what
+ * it wants.
+ */
+final class CrucibleXml {
+
+    /**
+     * Visits reviews as they are read from a review list. Returns false to stop reading.
+     */
+    interface ReviewVisitor {
+        boolean visit(BasicReview review);
+    }
+
+    private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+    static {
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private CrucibleXml() {
+    }
+
+    /**
+     * Returns the userName of a user profile response, or null if it has none.
+     */
+    static String userName(InputStream in) throws XMLStreamException, RemoteApiException {
+        XMLStreamReader r = open(in);
+        try {
+            while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if (r.getLocalName().equals("userData")) {
+                    return childText(r, "userName");
+                }
+                skip(r);
+            }
+            return null;
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Reads a single review response.
+     */
+    static BasicReview review(InputStream in, String serverUrl) throws XMLStreamException, RemoteApiException {
+        XMLStreamReader r = open(in);
+        try {
+            return readReview(r, serverUrl, true);
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Reads a review list response, handing each review to the visitor until it asks to stop.
+     */
+    static void reviews(InputStream in, String serverUrl, ReviewVisitor visitor)
+            throws XMLStreamException, RemoteApiException {
+        XMLStreamReader r = open(in);
+        try {
+            while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if (r.getLocalName().equals("reviewData")) {
+                    if (!visitor.visit(readReview(r, serverUrl, false))) {
+                        return;
+                    }
+                } else {
+                    skip(r);
+                }
+            }
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Opens a reader positioned on the root element, turning an error response into an exception.
+     */
+    private static XMLStreamReader open(InputStream in) throws XMLStreamException, RemoteApiException {
+        XMLStreamReader r = factory.createXMLStreamReader(in);
+        r.nextTag();
+        if (r.getLocalName().equals("error")) {
+            String code = null;
+            String message = null;
+            while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                if (r.getLocalName().equals("code")) {
+                    code = r.getElementText();
+                } else if (r.getLocalName().equals("message")) {
+                    message = r.getElementText();
+                } else {
+                    skip(r);
+                }
+            }
+            r.close();
+            if (code != null && code.toLowerCase().contains("unauthorized")) {
+                throw new RemoteApiSessionExpiredException("Server error: " + code + ": " + message);
+            }
+            throw new RemoteApiException("Server error: " + code + ": " + message);
+        }
+        return r;
+    }
+
+    /**
+     * Reads the reviewData element the reader is on. When stopWhenComplete is true, reading stops once every
+     * bound field has been seen, leaving the rest of the element unread.
+     */
+    private static BasicReview readReview(XMLStreamReader r, String serverUrl, boolean stopWhenComplete)
+            throws XMLStreamException {
+        String permId = null;
+        String name = null;
+        String state = null;
+        String author = null;
+        String project = null;
+        while (r.nextTag() == XMLStreamConstants.START_ELEMENT) {
+            String element = r.getLocalName();
+            if (element.equals("permaId")) {
+                permId = childText(r, "id");
+            } else if (element.equals("name")) {
+                name = r.getElementText();
+            } else if (element.equals("state")) {
+                state = r.getElementText();
+            } else if (element.equals("author")) {
+                author = childText(r, "userName");
+            } else if (element.equals("projectKey")) {
+                project = r.getElementText();
+            } else {
+                skip(r);
+            }
+            if (stopWhenComplete && permId != null && name != null && state != null && author != null
+                    && project != null) {
+                break;
+            }
+        }
+        BasicReview review = new BasicReview(serverUrl, project, new User(author, null), null);
+        review.setPermId(new PermId(permId));
+        review.setName(name);
+        review.setState(toState(state));
+        return review;
+    }
+
+    private static State toState(String value) {
+        if (value == null) {
+            return null;
+        }
+        try {
+            return State.fromValue(value);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the text of the named child of the element the reader is on, consuming the whole element.
+     */
+    private static String childText(XMLStreamReader r, String child) throws XMLStreamException {
+        String text = null;
+        int depth = 1;
+        while (depth > 0) {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                if (depth == 1 && text == null && r.getLocalName().equals(child)) {
+                    text = r.getElementText();
+                } else {
+                    depth++;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+        return text;
+    }
+
+    /**
+     * Skips over the element the reader is on, without materializing any of it.
+     */
+    private static void skip(XMLStreamReader r) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = r.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                depth--;
+            }
+        }
+    }
+}
@@ -17,26 +17,47 @@ package com.netflix.postreview;
 
 import com.atlassian.connector.commons.api.ConnectionCfg;
 import com.atlassian.theplugin.commons.crucible.api.UploadItem;
+import com.atlassian.theplugin.commons.crucible.api.model.BasicReview;
 import com.atlassian.theplugin.commons.crucible.api.model.PermId;
+import com.atlassian.theplugin.commons.crucible.api.model.State;
 import com.atlassian.theplugin.commons.crucible.api.rest.CrucibleSessionImpl;
 import com.atlassian.theplugin.commons.remoteapi.RemoteApiException;
 import com.atlassian.theplugin.commons.remoteapi.RemoteApiLoginException;
 import com.atlassian.theplugin.commons.remoteapi.RemoteApiMalformedUrlException;
+import com.atlassian.theplugin.commons.remoteapi.RemoteApiSessionExpiredException;
 import com.atlassian.theplugin.commons.remoteapi.rest.HttpSessionCallback;
 import com.atlassian.theplugin.commons.util.Logger;
 import org.apache.commons.httpclient.HttpMethod;
+import org.apache.commons.httpclient.HttpStatus;
+import org.apache.commons.httpclient.methods.RequestEntity;
 import org.apache.commons.httpclient.methods.multipart.ByteArrayPartSource;
 import org.apache.commons.httpclient.methods.multipart.FilePart;
+import org.apache.commons.httpclient.methods.multipart.MultipartRequestEntity;
 import org.apache.commons.httpclient.methods.multipart.Part;
-import org.jdom.Document;
-import org.jdom.Element;
-import org.jdom.JDOMException;
-import org.jdom.xpath.XPath;
+import org.apache.commons.httpclient.methods.multipart.PartSource;
+import org.apache.commons.httpclient.params.HttpMethodParams;
 
+import javax.xml.stream.XMLStreamException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
+import java.net.URLEncoder;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Subclass CrucibleSessionImpl to override a few methods to see if we can have better access to the rest
@@ -44,7 +65,12 @@ import java.util.List;
  */
 class ExtendedCrucibleSession extends CrucibleSessionImpl {
 
+    private static final int UPLOAD_ATTEMPTS = 5;
+    private static final long RETRY_DELAY = 1000;
+    private static final Random jitter = new Random();
+
     private Field authTokenField;
+    private final HttpTransport transport = ClientFactory.getTransport();
 
     public ExtendedCrucibleSession(ConnectionCfg serverData, HttpSessionCallback callback, Logger logger)
                 throws RemoteApiMalformedUrlException {
@@ -97,77 +123,465 @@ class ExtendedCrucibleSession extends CrucibleSessionImpl {
         }
     }
 
+    /**
+     * Adds the auth token to a url for requests made through our own transport.
+     */
+    private String authorize(String url) {
+        if (getAuthToken() == null) {
+            return url;
+        }
+        return url + (url.indexOf('?') >= 0 ? "&" : "?") + "FEAUTH=" + getAuthToken();
+    }
+
     public void checkUser(String user) throws RemoteApiException {
         String requestUrl = getBaseUrl() + "/rest-service/users-v1/" + user; // USER_SERVICE;
-        try {
-            Document doc = retrieveGetResponse(requestUrl);
+        String userName = get(requestUrl, new ResponseReader<String>() {
+            public String read(InputStream in) throws XMLStreamException, RemoteApiException {
+                return CrucibleXml.userName(in);
+            }
+        });
+        if (userName == null) {
+            throw new RemoteApiException(getBaseUrl() + ": Server returned malformed response, missing: /restUserProfileData/userData/userName");
+        }
+    }
 
-            XPath xpath = XPath.newInstance("/restUserProfileData/userData/userName");
-            List<Element> elements = xpath.selectNodes(doc);
-            if (elements == null || elements.isEmpty()) {
-                throw new RemoteApiException(getBaseUrl() + ": Server returned malformed response, missing: /restUserProfileData/userData/userName");
+    /**
+     * Retrieves the basic fields of a review: permId, name, state, author and project.
+     */
+    public BasicReview getBasicReview(PermId permId) throws RemoteApiException {
+        String requestUrl = getBaseUrl() + "/rest-service/reviews-v1/" + permId.getId();
+        return get(requestUrl, new ResponseReader<BasicReview>() {
+            public BasicReview read(InputStream in) throws XMLStreamException, RemoteApiException {
+                return CrucibleXml.review(in, getBaseUrl());
             }
-        } catch (IOException e) {
-            throw new RemoteApiException(getBaseUrl() + ": " + e.getMessage(), e);
-        } catch (JDOMException e) {
-            throw new RemoteApiException(getBaseUrl() + ": Server returned malformed response", e);
+        });
+    }
+
+    /**
+     * Streams the basic fields of an author's reviews in the given states to a visitor, which may stop early.
+     */
+    public void scanReviews(String author, State[] states, final CrucibleXml.ReviewVisitor visitor)
+            throws RemoteApiException {
+        StringBuilder url = new StringBuilder(getBaseUrl()).append("/rest-service/reviews-v1/filter?author=");
+        try {
+            url.append(URLEncoder.encode(author, "UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        url.append("&states=");
+        for (int i = 0; i < states.length; i++) {
+            url.append(i > 0 ? "," : "").append(states[i].value());
+        }
+        get(url.toString(), new ResponseReader<Void>() {
+            public Void read(InputStream in) throws XMLStreamException, RemoteApiException {
+                CrucibleXml.reviews(in, getBaseUrl(), visitor);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Opens up to the given number of connections to the server ahead of the real requests, so their TLS
+     * handshakes overlap other work. The connections are left in the transport's pool. Failures are ignored,
+     * the real requests will report them.
+     */
+    public void warmUp(int connections) {
+        final String requestUrl = getBaseUrl() + "/rest-service/reviews-v1/versionInfo";
+        List<Callable<Void>> pings = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < connections; i++) {
+            pings.add(new Callable<Void>() {
+                public Void call() throws IOException {
+                    HttpTransport.Response response = transport.get(requestUrl,
+                            Collections.singletonMap("Accept-Encoding", "gzip"), ClientFactory.dataTimeoutFor(0));
+                    try {
+                        discard(response.getBody());
+                    } finally {
+                        response.close(true);
+                    }
+                    return null;
+                }
+            });
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, connections), Fetcher.daemonThreads);
+        try {
+            pool.invokeAll(pings);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
         }
     }
 
     /**
      * Override addItemsToReview to differentiate the 3 cases of pairs present 1/1, 1/0, 0/1 (0/0
-     * being invalid).
+     * being invalid). Items are uploaded concurrently, one worker per allowed connection to the server.
+     * Failed items are collected and reported together, except for authentication failures which
+     * cancel the remaining uploads right away.
      */
     @Override
     public void addItemsToReview(PermId permId, Collection<UploadItem> uploadItems) throws RemoteApiException {
+        addItemsToReview(permId, uploadItems, null);
+    }
+
+    /**
+     * Uploads items as above, retrying transient failures with exponential backoff and notifying the listener,
+     * if any, as each item is acknowledged.
+     */
+    public void addItemsToReview(PermId permId, Collection<UploadItem> uploadItems, UploadListener listener)
+            throws RemoteApiException {
+        if (!uploadItems.isEmpty()) {
+            addItemsToReview(permId, UploadQueue.of(uploadItems), listener);
+        }
+    }
+
+    /**
+     * Uploads items as they arrive on the queue, until it ends. Each upload worker takes the next item as soon
+     * as it is done with the last one. A failure to produce the items, or an authentication failure, cancels the
+     * queue and is rethrown.
+     */
+    public void addItemsToReview(PermId permId, final UploadQueue queue, final UploadListener listener)
+            throws RemoteApiException {
         final String REVIEW_SERVICE = "/rest-service/reviews-v1";
         final String ADD_FILE = "/addFile";
+        final String urlString = getBaseUrl() + REVIEW_SERVICE + "/" + permId.getId() + ADD_FILE;
+
+        int workers = ClientFactory.getMaxConnectionsPerHost();
+        if (queue.sizeHint() > 0) {
+            workers = Math.min(workers, queue.sizeHint());
+        }
+        final List<String> failures = Collections.synchronizedList(new ArrayList<String>());
+        final AtomicReference<Throwable> firstFailure = new AtomicReference<Throwable>();
+        ExecutorService pool = Executors.newFixedThreadPool(workers, Fetcher.daemonThreads);
+        List<Future<Void>> uploaders = new ArrayList<Future<Void>>(workers);
+        try {
+            for (int w = 0; w < workers; w++) {
+                uploaders.add(pool.submit(new Callable<Void>() {
+                    public Void call() throws RemoteApiException, IOException, InterruptedException {
+                        UploadItem uploadItem;
+                        while ((uploadItem = queue.take()) != null) {
+                            try {
+                                addItemToReviewWithRetry(urlString, uploadItem);
+                            } catch (RemoteApiException e) {
+                                if (e instanceof RemoteApiLoginException || e instanceof RemoteApiSessionExpiredException) {
+                                    queue.cancel();  // no point trying the rest
+                                    throw e;
+                                }
+                                failures.add(uploadItem.getFileName() + ": " + e.getMessage());
+                                firstFailure.compareAndSet(null, e);
+                                continue;
+                            }
+                            if (listener != null) {
+                                listener.uploaded(uploadItem);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> uploader : uploaders) {
+                try {
+                    uploader.get();
+                } catch (ExecutionException e) {
+                    queue.cancel();
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RemoteApiException) {
+                        throw (RemoteApiException) cause;
+                    }
+                    throw new RemoteApiException(getBaseUrl() + ": Upload stopped: " + cause.getMessage(), cause);
+                }
+            }
+        } catch (InterruptedException e) {
+            queue.cancel();
+            Thread.currentThread().interrupt();
+            throw new RemoteApiException(getBaseUrl() + ": Interrupted while uploading", e);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        if (!failures.isEmpty()) {
+            StringBuilder msg = new StringBuilder();
+            msg.append(getBaseUrl()).append(": ").append(failures.size()).append(" of ").append(queue.accepted())
+                    .append(" files failed to upload:");
+            for (String failure : failures) {
+                msg.append("\n    ").append(failure);
+            }
+            throw new RemoteApiException(msg.toString(), firstFailure.get());
+        }
+    }
+
+    /**
+     * Adds a patch to a review, streaming it from its source into the request body, anchored at the given path of
+     * the repository unless that is null. It is not retried, since a patch that reached the server before a failure
+     * would otherwise be added twice. The one re-post is postEntity() sending it plain after the server turned a
+     * gzipped body down with a 415 or 411, which it does before acting on the request.
+     */
+    public void addPatchToReview(PermId permId, String repository, String anchorPath, ContentSource patch)
+            throws RemoteApiException {
+        final String REVIEW_SERVICE = "/rest-service/reviews-v1";
+        final String ADD_PATCH = "/patch";
+        String urlString = getBaseUrl() + REVIEW_SERVICE + "/" + permId.getId() + ADD_PATCH;
+        postEntity(urlString, new PatchRequestEntity(repository, anchorPath, patch), patch.length());
+    }
+
+    private void addItemToReviewWithRetry(String urlString, UploadItem uploadItem)
+            throws RemoteApiException, InterruptedException {
+        long delay = RETRY_DELAY;
+        for (int attempt = 1; ; attempt++) {
+            try {
+                addItemToReview(urlString, uploadItem);
+                return;
+            } catch (RemoteApiException e) {
+                if (attempt >= UPLOAD_ATTEMPTS || !isTransient(e)) {
+                    throw e;
+                }
+                System.out.println("Retrying upload of " + uploadItem.getFileName() + " after: " + e.getMessage());
+                long wait;
+                synchronized (jitter) {
+                    wait = delay + jitter.nextInt((int) delay);
+                }
+                TimeUnit.MILLISECONDS.sleep(wait);
+                delay *= 2;
+            }
+        }
+    }
+
+    /**
+     * Returns true for failures worth retrying: requests the server cannot have acted on, such as refused
+     * connections, bodies cut short while sending and 503 responses. A file is not re-posted after a failure
+     * once the request was sent, such as a read timeout, since the server may have added it already.
+     */
+    private static boolean isTransient(RemoteApiException e) {
+        if (e instanceof RemoteApiLoginException || e instanceof RemoteApiSessionExpiredException) {
+            return false;
+        }
+        for (Throwable t = e.getCause(); t != null; t = t.getCause()) {
+            if (t instanceof HttpTransport.NotSentException) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addItemToReview(String urlString, UploadItem uploadItem) throws RemoteApiException {
+        long size = payloadSize(uploadItem);
+        // Item add
+        if (!hasOldContent(uploadItem) && hasNewContent(uploadItem)) {
+            PartSource targetNewFile = newPartSource(uploadItem);
+
+            Part[] parts = {
+                new FilePart("file", targetNewFile,
+                        uploadItem.getNewContentType(), uploadItem.getNewCharset())};
+
+            postParts(urlString, parts, size);
+
+        // Item modify
+        // TODO: use this approach for deletions too for now.
+        } else if (true) { //uploadItem.getOldContent() != null && uploadItem.getNewContent() != null) {
+            PartSource targetNewFile = newPartSource(uploadItem);
+            PartSource targetOldFile = oldPartSource(uploadItem);
+
+            Part[] parts = {
+                    new FilePart("file", targetNewFile,
+                            uploadItem.getNewContentType(), uploadItem.getNewCharset()),
+                    new FilePart("diffFile", targetOldFile,
+                            uploadItem.getOldContentType(), uploadItem.getOldCharset())};
+
+            postParts(urlString, parts, size);
+
+        // Item delete  
+        // TODO: this rest combo doesn't work: crucible seems to need the "file" part...
+        } else { // uploadItem.getOldContent() != null && uploadItem.getNewContent() == null
+            PartSource targetOldFile = oldPartSource(uploadItem);
+
+            Part[] parts = {
+                    new FilePart("diffFile", targetOldFile,
+                            uploadItem.getOldContentType(), uploadItem.getOldCharset())};
+
+            postParts(urlString, parts, size);
+        }
+    }
+
+    // Smallest payload worth compressing
+    private static final long MIN_COMPRESS_SIZE = 4096;
+
+    // Whether the server has taken or turned down a gzipped request body so far: null until known
+    private volatile Boolean serverTakesGzip;
+
+    private void postParts(String urlString, Part[] parts, long size) throws RemoteApiException {
+        postEntity(urlString, new MultipartRequestEntity(parts, new HttpMethodParams()), size);
+    }
+
+    /**
+     * Posts a repeatable request body, gzipping it when allowed and the server hasn't turned compression down.
+     * The response body is drained without being parsed since callers ignore it.
+     */
+    private void postEntity(String urlString, RequestEntity entity, long size) throws RemoteApiException {
+        boolean compress = ClientFactory.isCompressRequests() && serverTakesGzip != Boolean.FALSE
+                && size >= MIN_COMPRESS_SIZE;
+        int status = post(urlString, entity, size, compress);
+        if (compress && serverTakesGzip == null) {
+            serverTakesGzip = !isCompressionRejected(status);
+            if (!serverTakesGzip) {
+                System.out.println("Server does not take compressed uploads (HTTP " + status + "), sending them plain.");
+                status = post(urlString, entity, size, false);
+            }
+        }
+        checkStatus(status);
+    }
+
+    private int post(String urlString, RequestEntity entity, long size, boolean compress) throws RemoteApiException {
+        Map<String, String> headers = new HashMap<String, String>();
+        headers.put("Accept-Encoding", "gzip");
+        if (compress) {
+            entity = new GzipRequestEntity(entity);
+            headers.put("Content-Encoding", "gzip");
+        }
+        HttpTransport.Response response = null;
         try {
-            String urlString = getBaseUrl() + REVIEW_SERVICE + "/" + permId.getId() + ADD_FILE;
-            for (UploadItem uploadItem : uploadItems) {
-
-                // Item add
-                if (uploadItem.getOldContent() == null && uploadItem.getNewContent() != null) {
-                    ByteArrayPartSource targetNewFile =
-                            new ByteArrayPartSource(uploadItem.getFileName(), uploadItem.getNewContent());
-
-                    Part[] parts = {
-                        new FilePart("file", targetNewFile,
-                                uploadItem.getNewContentType(), uploadItem.getNewCharset())};
-
-                    retrievePostResponse(urlString, parts, true);
-
-                // Item modify
-                // TODO: use this approach for deletions too for now.
-                } else if (true) { //uploadItem.getOldContent() != null && uploadItem.getNewContent() != null) {
-                    ByteArrayPartSource targetNewFile =
-                            new ByteArrayPartSource(uploadItem.getFileName(), uploadItem.getNewContent());
-                    ByteArrayPartSource targetOldFile =
-                            new ByteArrayPartSource(uploadItem.getFileName(), uploadItem.getOldContent());
-
-                    Part[] parts = {
-                            new FilePart("file", targetNewFile,
-                                    uploadItem.getNewContentType(), uploadItem.getNewCharset()),
-                            new FilePart("diffFile", targetOldFile,
-                                    uploadItem.getOldContentType(), uploadItem.getOldCharset())};
-
-                    retrievePostResponse(urlString, parts, true);
-
-                // Item delete  
-                // TODO: this rest combo doesn't work: crucible seems to need the "file" part...
-                } else { // uploadItem.getOldContent() != null && uploadItem.getNewContent() == null
-                    ByteArrayPartSource targetOldFile =
-                            new ByteArrayPartSource(uploadItem.getFileName(), uploadItem.getOldContent());
-
-                    Part[] parts = {
-                            new FilePart("diffFile", targetOldFile,
-                                    uploadItem.getOldContentType(), uploadItem.getOldCharset())};
-
-                    retrievePostResponse(urlString, parts, true);
+            response = transport.post(authorize(urlString), headers, entity, ClientFactory.dataTimeoutFor(size));
+            discard(response.getBody());
+            return response.getStatus();
+        } catch (IOException e) {
+            throw new RemoteApiException(getBaseUrl() + ": " + e.getMessage(), e);
+        } finally {
+            if (response != null) {
+                response.close(true);
+            }
+        }
+    }
+
+    /**
+     * Returns true for the statuses a server turns a gzipped body down with before acting on the request: an
+     * unsupported encoding, or a chunked body where a length is required. Any other failure is left to
+     * checkStatus(), as the server may have processed the request and sending it again would repeat it.
+     */
+    private static boolean isCompressionRejected(int status) {
+        return status == HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE || status == HttpStatus.SC_LENGTH_REQUIRED;
+    }
+
+    /**
+     * Turns a failed status into an exception. A 503, sent by a server that did not act on the request, is
+     * marked as not sent so the upload is retried.
+     */
+    private void checkStatus(int status) throws RemoteApiException {
+        if (status >= 200 && status < 300) {
+            return;
+        }
+        String msg = getBaseUrl() + ": HTTP " + status + " " + HttpStatus.getStatusText(status);
+        if (status == HttpStatus.SC_UNAUTHORIZED) {
+            throw new RemoteApiSessionExpiredException(msg);
+        }
+        if (status == HttpStatus.SC_SERVICE_UNAVAILABLE) {
+            throw new RemoteApiException(msg, new HttpTransport.NotSentException(msg, null));
+        }
+        throw new RemoteApiException(msg);
+    }
+
+    private static void discard(InputStream in) throws IOException {
+        if (in != null) {
+            try {
+                byte[] buf = new byte[8192];
+                while (in.read(buf) != -1) {
+                    // keep the connection reusable
                 }
+            } finally {
+                in.close();
             }
-        } catch (JDOMException e) {
+        }
+    }
+
+    /**
+     * Reads a response body with a streaming reader.
+     */
+    private interface ResponseReader<T> {
+        T read(InputStream in) throws XMLStreamException, RemoteApiException;
+    }
+
+    /**
+     * Gets a response, accepting a gzipped body, and hands it to a reader. If the reader stops before the end
+     * of the body, the connection is dropped rather than reading the rest.
+     */
+    private <T> T get(String urlString, ResponseReader<T> reader) throws RemoteApiException {
+        HttpTransport.Response response = null;
+        boolean keepAlive = true;
+        try {
+            response = transport.get(authorize(urlString), Collections.singletonMap("Accept-Encoding", "gzip"),
+                    ClientFactory.dataTimeoutFor(0));
+            checkStatus(response.getStatus());
+            InputStream in = response.getBody();
+            if ("gzip".equalsIgnoreCase(response.getHeader("Content-Encoding"))) {
+                in = new GZIPInputStream(in);
+            }
+            T result = reader.read(in);
+            keepAlive = in.read() == -1;
+            return result;
+        } catch (IOException e) {
+            keepAlive = false;
+            throw new RemoteApiException(getBaseUrl() + ": " + e.getMessage(), e);
+        } catch (XMLStreamException e) {
+            keepAlive = false;
             throw new RemoteApiException(getBaseUrl() + ": Server returned malformed response", e);
+        } finally {
+            if (response != null) {
+                response.close(keepAlive);
+            }
+        }
+    }
+
+    private static long payloadSize(UploadItem item) {
+        if (item instanceof SourceUploadItem) {
+            SourceUploadItem sourceItem = (SourceUploadItem) item;
+            return (sourceItem.getOldSource() != null ? sourceItem.getOldSource().length() : 0)
+                    + (sourceItem.getNewSource() != null ? sourceItem.getNewSource().length() : 0);
+        }
+        return (item.getOldContent() != null ? item.getOldContent().length : 0)
+                + (item.getNewContent() != null ? item.getNewContent().length : 0);
+    }
+
+    // Part sources: stream SourceUploadItem content, fall back to byte arrays for plain UploadItems
+
+    private static boolean hasOldContent(UploadItem item) {
+        return item instanceof SourceUploadItem
+                ? ((SourceUploadItem) item).getOldSource() != null
+                : item.getOldContent() != null;
+    }
+
+    private static boolean hasNewContent(UploadItem item) {
+        return item instanceof SourceUploadItem
+                ? ((SourceUploadItem) item).getNewSource() != null
+                : item.getNewContent() != null;
+    }
+
+    private static PartSource oldPartSource(UploadItem item) {
+        if (item instanceof SourceUploadItem) {
+            return new ContentPartSource(item.getFileName(), ((SourceUploadItem) item).getOldSource());
+        }
+        return new ByteArrayPartSource(item.getFileName(), item.getOldContent());
+    }
+
+    private static PartSource newPartSource(UploadItem item) {
+        if (item instanceof SourceUploadItem) {
+            return new ContentPartSource(item.getFileName(), ((SourceUploadItem) item).getNewSource());
         }
+        return new ByteArrayPartSource(item.getFileName(), item.getNewContent());
+    }
+
+    /**
+     * Multipart body source that streams from a ContentSource each time the part is written.
+     */
+    private static class ContentPartSource implements PartSource {
+        private final String fileName;
+        private final ContentSource source;
+
+        ContentPartSource(String fileName, ContentSource source) {
+            this.fileName = fileName;
+            this.source = source != null ? source : ContentSource.of(new byte[0]);
+        }
+
+        public long getLength() { return source.length(); }
+
+        public String getFileName() { return fileName; }
+
+        public InputStream createInputStream() throws IOException { return source.open(); }
     }
 }
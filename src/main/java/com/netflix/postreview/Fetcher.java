@@ -0,0 +1,124 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Bounded parallel fetch engine. Runs a list of fetch tasks on a fixed number of worker threads, starting the
+ * largest tasks first so a big file does not end up running alone at the tail, and returns the results in the
+ * original order.
+ */
+public class Fetcher {
+
+    /**
+     * A unit of fetch work with an estimated size in bytes used for scheduling. Zero means unknown.
+     */
+    public static abstract class Task<T> implements Callable<T> {
+        private final long size;
+
+        protected Task(long size) {
+            this.size = size;
+        }
+
+        public long size() { return size; }
+
+        public abstract T call() throws IOException;
+    }
+
+    static final ThreadFactory daemonThreads = new ThreadFactory() {
+        private final ThreadFactory delegate = Executors.defaultThreadFactory();
+        public Thread newThread(Runnable r) {
+            Thread thread = delegate.newThread(r);
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private final int workers;
+
+    public Fetcher(int workers) {
+        this.workers = Math.max(1, workers);
+    }
+
+    public int getWorkers() { return workers; }
+
+    /**
+     * Runs all tasks and returns their results in task list order. The first failure cancels any work not yet
+     * finished and is rethrown.
+     */
+    public <T> List<T> fetchAll(final List<? extends Task<T>> tasks) throws IOException {
+        int n = tasks.size();
+        List<T> results = new ArrayList<T>(n);
+        if (workers == 1 || n <= 1) {
+            for (Task<T> task : tasks) {
+                results.add(task.call());
+            }
+            return results;
+        }
+
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) order[i] = i;
+        Arrays.sort(order, new Comparator<Integer>() {  // stable, so equal sizes keep list order
+            public int compare(Integer a, Integer b) {
+                long sa = tasks.get(a).size();
+                long sb = tasks.get(b).size();
+                return sa < sb ? 1 : (sa > sb ? -1 : 0);
+            }
+        });
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(workers, n), daemonThreads);
+        try {
+            List<Future<T>> futures = new ArrayList<Future<T>>(Collections.<Future<T>>nCopies(n, null));
+            for (int i : order) {
+                futures.set(i, pool.submit(tasks.get(i)));
+            }
+            for (Future<T> future : futures) {
+                results.add(get(future));
+            }
+            return results;
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fetching", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause.getMessage(), cause);
+        }
+    }
+
+}
@@ -0,0 +1,53 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Request entity that gzips another entity on the fly. The compressed length isn't known up front, so the
+ * request goes out chunked.
+ */
+class GzipRequestEntity implements RequestEntity {
+    private final RequestEntity entity;
+
+    GzipRequestEntity(RequestEntity entity) {
+        this.entity = entity;
+    }
+
+    public boolean isRepeatable() {
+        return entity.isRepeatable();
+    }
+
+    public void writeRequest(OutputStream out) throws IOException {
+        GZIPOutputStream gzip = new GZIPOutputStream(out, 64 * 1024);
+        entity.writeRequest(gzip);
+        gzip.finish();
+        gzip.flush();
+    }
+
+    public long getContentLength() {
+        return -1;
+    }
+
+    public String getContentType() {
+        return entity.getContentType();
+    }
+}
@@ -0,0 +1,82 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import com.atlassian.theplugin.commons.exception.HttpProxySettingsException;
+import org.apache.commons.httpclient.Header;
+import org.apache.commons.httpclient.HttpMethodBase;
+import org.apache.commons.httpclient.methods.GetMethod;
+import org.apache.commons.httpclient.methods.PostMethod;
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * Transport on commons-httpclient, sharing the pooled connections of ClientFactory.
+ */
+class HttpClientTransport implements HttpTransport {
+
+    public Response get(String url, Map<String, String> headers, int timeout) throws IOException {
+        return execute(new GetMethod(url), headers, timeout);
+    }
+
+    public Response post(String url, Map<String, String> headers, RequestEntity entity, int timeout)
+            throws IOException {
+        PostMethod method = new PostMethod(url);
+        method.setRequestEntity(entity);
+        return execute(method, headers, timeout);
+    }
+
+    private static Response execute(final HttpMethodBase method, Map<String, String> headers, int timeout)
+            throws IOException {
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            method.setRequestHeader(header.getKey(), header.getValue());
+        }
+        method.getParams().setSoTimeout(timeout);
+        final int status;
+        try {
+            status = ClientFactory.getClient().executeMethod(method);
+        } catch (HttpProxySettingsException e) {
+            method.releaseConnection();
+            throw new IOException("Proxy settings problem", e);
+        } catch (IOException e) {
+            method.releaseConnection();
+            if (!method.isRequestSent()) {
+                throw new NotSentException(e.getMessage(), e);
+            }
+            throw e;
+        }
+        return new Response() {
+            public int getStatus() { return status; }
+
+            public String getHeader(String name) {
+                Header header = method.getResponseHeader(name);
+                return header != null ? header.getValue() : null;
+            }
+
+            public InputStream getBody() throws IOException { return method.getResponseBodyAsStream(); }
+
+            public void close(boolean keepAlive) {
+                if (!keepAlive) {
+                    method.abort();
+                }
+                method.releaseConnection();
+            }
+        };
+    }
+}
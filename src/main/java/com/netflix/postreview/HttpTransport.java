@@ -0,0 +1,61 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * The HTTP requests post2crucible makes itself, outside of the inherited Crucible session methods. Transports are
+ * shared by every session and upload thread of a run, and keep connections alive between requests.
+ */
+public interface HttpTransport {
+
+    /**
+     * A response whose body may be streamed. Must be closed, keeping the connection alive only when the body was
+     * read to the end.
+     */
+    interface Response {
+        int getStatus();
+
+        String getHeader(String name);
+
+        InputStream getBody() throws IOException;
+
+        void close(boolean keepAlive);
+    }
+
+    /**
+     * A request that failed before the server could act on it: the connection could not be made or the request
+     * was not sent in full. Sending it again cannot repeat its effect, unlike after other I/O failures such as
+     * a read timeout, where the server may have processed the request already.
+     */
+    class NotSentException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        public NotSentException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    Response get(String url, Map<String, String> headers, int timeout) throws IOException;
+
+    Response post(String url, Map<String, String> headers, RequestEntity entity, int timeout) throws IOException;
+
+}
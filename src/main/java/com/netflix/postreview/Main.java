@@ -33,6 +33,11 @@ import org.apache.commons.cli.ParseException;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @author cquinn
@@ -59,6 +64,10 @@ public class Main {
                     .withDescription("Perforce password. (default: $P4PASSWD if needed)").create())
                 .addOption(OptionBuilder.withLongOpt("p4client").hasArg().withArgName("clientname")
                     .withDescription("Perforce client. (default: $P4CLIENT)").create())
+                .addOption(OptionBuilder.withLongOpt("p4marshal")
+                    .withDescription("Read Perforce output in marshalled (-G) form instead of ztag text.").create())
+                .addOption(OptionBuilder.withLongOpt("p4diff")
+                    .withDescription("In patch mode, diff edited files with 'p4 diff' instead of printing depot versions.").create())
 
                 // Git connection & context options
                 .addOption(OptionBuilder.withLongOpt("git").hasArg().withArgName("path")
@@ -71,6 +80,14 @@ public class Main {
                     .withDescription("Pending P4/Git change (Git default: HEAD^) to review.").create('c'))
                 .addOption(OptionBuilder.withLongOpt("endchange").hasArg().withArgName("id")
                     .withDescription("The ending Git commit (default: HEAD)").create('e'))
+                .addOption(OptionBuilder.withLongOpt("threads").hasArg().withArgName("count")
+                    .withDescription("Number of files to fetch from P4/Git in parallel. (default: 4)").create())
+                .addOption(OptionBuilder.withLongOpt("cachedir").hasArg().withArgName("path")
+                    .withDescription("Cache of fetched depot revisions and git blobs. (default: ~/.post2crucible.cache)").create())
+                .addOption(OptionBuilder.withLongOpt("cachesize").hasArg().withArgName("MB")
+                    .withDescription("Maximum size of the content cache in MB. (default: 512)").create())
+                .addOption(OptionBuilder.withLongOpt("nocache")
+                    .withDescription("Do not read or write the content cache.").create())
 
                 // Code review options
                 .addOption(OptionBuilder.withLongOpt("nothing")
@@ -79,6 +96,16 @@ public class Main {
                     .withDescription("Existing Crucible review to update. (default: find based on changeId in name)").create('r'))
                 .addOption(OptionBuilder.withLongOpt("project").hasArg().withArgName("key")
                     .withDescription("Crucible project to associate review with. (default: 'CR')").create('j'))
+                .addOption(OptionBuilder.withLongOpt("uploads").hasArg().withArgName("count")
+                    .withDescription("Number of files to upload to Crucible in parallel. (default: 3)").create())
+                .addOption(OptionBuilder.withLongOpt("nocompress")
+                    .withDescription("Do not gzip file uploads to Crucible.").create())
+                .addOption(OptionBuilder.withLongOpt("transport").hasArg().withArgName("name")
+                    .withDescription("HTTP transport for uploads and lookups: httpclient or jdk. (default: httpclient)").create())
+                .addOption(OptionBuilder.withLongOpt("full")
+                    .withDescription("Upload every file when updating a review, even those unchanged since the last update.").create())
+                .addOption(OptionBuilder.withLongOpt("resume")
+                    .withDescription("Only upload the files an interrupted upload to the review did not finish.").create())
                 .addOption(OptionBuilder.withLongOpt("patch")
                     .withDescription("Use a universal diff patch upload instead of full file pairs.").create())
 
@@ -100,6 +127,8 @@ public class Main {
         final String p4port;
         final String p4passwd;
         final String p4client;
+        final boolean p4marshal;
+        final boolean p4diff;
 
         // Git connection & context options
         final String git;
@@ -108,12 +137,20 @@ public class Main {
         // Change / commit options
         final String changeId;
         final String endChangeId;
+        final int threads;
+        final File cacheDir;
+        final long cacheSize;
 
         // action options
         final boolean nothing;
         final String reviewKey;
         final String project;
         final boolean patch;
+        final int uploads;
+        final boolean compress;
+        final String transport;
+        final boolean full;
+        final boolean resume;
         final boolean open;
         final boolean forceNewReview;
 
@@ -123,6 +160,8 @@ public class Main {
             p4port = line.getOptionValue("p4port", "perforce:1666");
             p4client = line.getOptionValue("p4client", System.getenv("P4CLIENT"));
             p4passwd = line.getOptionValue("p4passwd", System.getenv("P4PASSWD"));
+            p4marshal = line.hasOption("p4marshal");
+            p4diff = line.hasOption("p4diff");
 
             git = line.hasOption("git") ? line.getOptionValue("git", "/opt/local/bin/git") : null;
             dir = new File(line.getOptionValue("dir", ".")).getCanonicalFile();
@@ -134,11 +173,23 @@ public class Main {
 
             changeId = line.getOptionValue("change");
             endChangeId = line.getOptionValue("endchange", "HEAD");
+            threads = Integer.parseInt(line.getOptionValue("threads", "4"));
+            cacheDir = line.hasOption("nocache") ? null
+                    : new File(line.getOptionValue("cachedir", System.getProperty("user.home") + "/.post2crucible.cache"));
+            cacheSize = Long.parseLong(line.getOptionValue("cachesize", "512")) * 1024 * 1024;
 
             nothing = line.hasOption("nothing");
             reviewKey = line.getOptionValue("review");
             project = line.getOptionValue("project", "CR");
             patch = line.hasOption("patch");
+            uploads = Integer.parseInt(line.getOptionValue("uploads", "3"));
+            compress = !line.hasOption("nocompress");
+            transport = line.getOptionValue("transport", "httpclient");
+            if (!transport.equals("httpclient") && !transport.equals("jdk")) {
+                throw new ParseException("Unknown transport: " + transport);
+            }
+            full = line.hasOption("full");
+            resume = line.hasOption("resume");
             open = line.hasOption("open");
             forceNewReview = line.hasOption("new");
         }
@@ -176,20 +227,37 @@ public class Main {
             return;
         }
 
-        // Login to Crucible
-        Crucible cru = loginCrucible(opts);
-
+        // Login to Crucible, allowing a connection per parallel upload. Login may prompt for a password, so it
+        // runs here before any other output starts. Connection warm-up doesn't depend on the change, so it runs
+        // while the change is read from the SCM, and nothing waits for it.
+        ClientFactory.setMaxConnectionsPerHost(opts.uploads);
+        ClientFactory.setCompressRequests(opts.compress);
+        ClientFactory.setTransport(opts.transport);
+        final Crucible cru = loginCrucible(opts);
         if (opts.login && opts.changeId == null) {
             System.exit(0);  // login above would be with force=true, so now just exit since nothing to do.
         }
+        final AppOptions stageOpts = opts;
+        ExecutorService stages = Executors.newCachedThreadPool(Fetcher.daemonThreads);
+        stages.submit(new Runnable() {
+            public void run() {
+                cru.warmUp(stageOpts.uploads);
+            }
+        });
 
         // Get the full change representation for Git/Perforce
-        Change change;
+        final Change change;
+        Fetcher fetcher = new Fetcher(opts.threads);
+        ContentCache cache = opts.cacheDir != null ? new ContentCache(opts.cacheDir, opts.cacheSize) : null;
         try {
             if (opts.git != null) {
-                change = new GitChange(new GitRunner(opts.git, opts.dir), opts.changeId, opts.endChangeId);
+                GitRunner git = new GitRunner(opts.git, opts.dir);
+                git.setCache(cache);
+                change = new GitChange(git, fetcher, opts.changeId, opts.endChangeId);
             } else {
-                change = new P4Change(new P4Runner(opts.p4port, opts.p4client, opts.user, opts.p4passwd), opts.changeId);
+                P4Runner p4 = new P4Runner(opts.p4port, opts.p4client, opts.user, opts.p4passwd, opts.p4marshal);
+                p4.setCache(cache);
+                change = new P4Change(p4, fetcher, opts.changeId, opts.p4diff);
             }
             System.out.println(change);
         } catch (Exception e) {
@@ -200,22 +268,67 @@ public class Main {
         }
 
         try {
-            // Try to find an existing review to update, may be null if none found
-            BasicReview review = locateReview(opts, cru, change.getId());
+            // Try to find an existing review to update, may be null if none found. This runs while the change
+            // content is fetched here.
+            Future<BasicReview> located = stages.submit(new Callable<BasicReview>() {
+                public BasicReview call() throws Exception {
+                    return locateReview(stageOpts, cru, change.getId());
+                }
+            });
 
+            BasicReview review;
             if (change.isSubmitted()) {
-                review = postSubmittedChange(change, opts, cru, review);
+                review = postSubmittedChange(change, opts, cru, joinLocated(located, opts, cru, change.getId()));
             } else { // Changelist.Status.PENDING
                 // Create or update the review using patch file or file pair items.
-                if (opts.patch)
-                    review = postLocalChangePatch(change, opts, cru, review);
-                else
-                    review = postLocalChangeItems(change, opts, cru, review);
+                if (opts.patch) {
+                    SpillBuffer patch = new SpillBuffer(PATCH_MEMORY);
+                    try {
+                        change.makePatch(null, patch);
+                        review = postLocalChangePatch(change, patch.toSource(), opts, cru,
+                                joinLocated(located, opts, cru, change.getId()));
+                    } finally {
+                        patch.delete();
+                    }
+                } else {
+                    // Resuming needs the review before anything is fetched, as there may be nothing to resume
+                    BasicReview resumed = opts.resume ? joinLocated(located, opts, cru, change.getId()) : null;
+                    if (opts.resume && resumed == null) {
+                        System.out.println("No review to resume uploading to for change " + change.getId());
+                        review = null;
+                    } else {
+                        // Fetch the file pairs into a bounded queue, starting while the review is located, and
+                        // upload each one as soon as it is fetched
+                        final UploadQueue queue = new UploadQueue(opts.uploads * QUEUED_PER_UPLOAD);
+                        Future<Void> fetch = stages.submit(new Callable<Void>() {
+                            public Void call() throws IOException {
+                                try {
+                                    change.makeUploadItems(null, queue);
+                                    queue.close();
+                                } catch (IOException e) {
+                                    queue.fail(e);
+                                    throw e;
+                                } catch (RuntimeException e) {
+                                    queue.fail(new IOException(e.getMessage(), e));
+                                    throw e;
+                                }
+                                return null;
+                            }
+                        });
+                        try {
+                            review = postLocalChangeItems(change, queue, opts, cru,
+                                    opts.resume ? resumed : joinLocated(located, opts, cru, change.getId()));
+                        } finally {
+                            queue.cancel();  // release the fetch stage if uploading stopped early
+                        }
+                        join(fetch);
+                    }
+                }
             }
 
             // Logout from Crucible, and display the result
             cru.logout();
-            if (!opts.nothing) {
+            if (!opts.nothing && review != null) {
                 finishReview(opts, review);
             }
 
@@ -227,6 +340,41 @@ public class Main {
             System.out.println("\nFatal: " + e);
             e.printStackTrace(System.out);
             System.exit(-1);
+        } finally {
+            stages.shutdown();
+        }
+    }
+
+    /**
+     * Waits for a startup stage to finish, rethrowing its failure.
+     */
+    private static <T> T join(Future<T> stage) throws Exception {
+        try {
+            return stage.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    /**
+     * Waits for the review lookup. If the saved login token it was made with was turned down, logs in again here
+     * on the main thread, where the password can be prompted for, and looks the review up again. Joining again
+     * returns the same review without another lookup.
+     */
+    private static BasicReview joinLocated(Future<BasicReview> located, AppOptions opts, Crucible cru,
+            String changeId) throws Exception {
+        try {
+            return join(located);
+        } catch (RemoteApiException e) {
+            if (!cru.isTokenRejected(e)) {
+                throw e;
+            }
+            cru.relogin();
+            return locateReview(opts, cru, changeId);
         }
     }
 
@@ -250,8 +398,10 @@ public class Main {
         return opts.forceNewReview ? null : (opts.reviewKey != null ? cru.getReview(opts.reviewKey) : cru.findReview(changeId, opts.user));
     }
 
-    private static BasicReview postLocalChangePatch(Change change, AppOptions opts, Crucible cru, BasicReview review) throws Exception {
-        String patch = change.makePatch(review);
+    // Patch bytes held in memory before the rest is spilled to a temporary file
+    private static final int PATCH_MEMORY = 8 * 1024 * 1024;
+
+    private static BasicReview postLocalChangePatch(Change change, ContentSource patch, AppOptions opts, Crucible cru, BasicReview review) throws Exception {
 
         // Create or update the review if not dry-run
         if (!opts.nothing) {
@@ -264,29 +414,80 @@ public class Main {
             }
         } else {
             System.out.println("Doing nothing (--nothing), but would upload patch:");
-            System.out.println(patch);
+            patch.writeTo(System.out);
+            System.out.println();
         }
         return review;
     }
 
-    private static BasicReview postLocalChangeItems(Change change, AppOptions opts, Crucible cru, BasicReview review) throws Exception {
-        // Generate the list of file items to review from the changelist, using the best form for create or update.
-        List<UploadItem> items = change.makeUploadItems(review);
+    private static final File manifestDir = new File(System.getProperty("user.home"), ".post2crucible.reviews");
 
-        // Create or update the review if not dry-run
-        if (!opts.nothing) {
-            if (review == null) {
-                Review newReview = cru.newReviewRequest("depot", opts.project, opts.user, change.getId(), change.getDescription());
-                review = cru.createReviewWithItems(newReview, items);
-            } else {
-                cru.updateReviewWithItems(review, items);
+    // Fetched file pairs allowed to wait for each upload worker
+    private static final int QUEUED_PER_UPLOAD = 4;
+
+    private static BasicReview postLocalChangeItems(Change change, UploadQueue queue, AppOptions opts, Crucible cru, BasicReview review) throws Exception {
+        ReviewManifest manifest = null;
+        if (review != null) {
+            manifest = ReviewManifest.load(manifestDir, review.getPermId().getId());
+        }
+
+        // Create or update the review if not dry-run. Uploads are journaled as they go, so a failed run keeps the
+        // files already sent and can be resumed. A new review that got none of them is abandoned instead.
+        boolean created = false;
+        if (!opts.nothing && review == null) {
+            Review newReview = cru.newReviewRequest("depot", opts.project, opts.user, change.getId(), change.getDescription());
+            review = cru.createReview(newReview);
+            created = true;
+            manifest = ReviewManifest.load(manifestDir, review.getPermId().getId());
+        }
+        queue.setFilter(uploadFilter(manifest, opts));
+        if (opts.nothing) {
+            while (queue.take() != null) {
+                // fetch everything to see what would be uploaded
             }
-        } else {
-            System.out.println("Doing nothing (--nothing), but would upload " + items.size() + " file pairs.");
+            System.out.println("Doing nothing (--nothing), but would upload " + queue.accepted() + " of " + queue.taken() + " file pairs.");
+            return review;
+        }
+        try {
+            manifest.begin();
+            cru.updateReviewWithItems(review, queue, manifest);
+        } catch (Exception e) {
+            if (created && manifest.uploadedCount() == 0) {
+                cru.abandonEmptyReview(review);
+            }
+            throw e;
+        }
+        manifest.save();
+        if (opts.resume) {
+            System.out.println("Resumed " + queue.accepted() + " unfinished file pair uploads.");
+        } else if (queue.accepted() == 0) {
+            System.out.println("Review " + review.getPermId().getId() + " is already up to date.");
+        } else if (!opts.full) {
+            System.out.println("" + queue.accepted() + " of " + queue.taken() + " file pairs changed since the last update.");
         }
         return review;
     }
 
+    /**
+     * Returns the filter choosing which fetched file pairs to upload: when updating, only those that changed since
+     * they were last uploaded to the review, or only those an interrupted upload left unfinished when resuming.
+     * Chosen items are journaled as planned.
+     */
+    private static UploadQueue.Filter uploadFilter(final ReviewManifest manifest, final AppOptions opts) {
+        return new UploadQueue.Filter() {
+            public boolean accept(UploadItem item) throws IOException {
+                if (manifest == null) {
+                    return true;
+                }
+                boolean upload = opts.resume ? manifest.isUnfinished(item) : opts.full || manifest.isChanged(item);
+                if (upload && !opts.nothing) {
+                    manifest.planned(item);
+                }
+                return upload;
+            }
+        };
+    }
+
     private static BasicReview postSubmittedChange(Change change, AppOptions opts, Crucible cru, BasicReview review) throws Exception {
         // Create the review if not dry-run
         if (!opts.nothing) {
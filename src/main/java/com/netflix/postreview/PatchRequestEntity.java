@@ -0,0 +1,109 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+import org.apache.commons.lang.StringEscapeUtils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+
+/**
+ * Request entity adding a patch to a review: the addPatch element the REST API takes, with the patch streamed
+ * from its source into a CDATA section. The patch is decoded and encoded again in the charset it was written in,
+ * which the document is declared in. Bytes of a file that are not valid in that charset, such as a Latin-1 file on
+ * a UTF-8 host, become replacement characters as they did when patches were built as strings, so the document is
+ * always well-formed. Its length isn't known up front, so the request goes out chunked.
+ * <p>
+ * An anchor path, when given, anchors the patch at that path of the repository, as the connector library's
+ * PatchAnchorData did when reviews were created from a patch string.
+ */
+class PatchRequestEntity implements RequestEntity {
+    private final String repository;
+    private final String anchorPath;
+    private final ContentSource patch;
+
+    PatchRequestEntity(String repository, String anchorPath, ContentSource patch) {
+        this.repository = repository;
+        this.anchorPath = anchorPath;
+        this.patch = patch;
+    }
+
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    public void writeRequest(OutputStream out) throws IOException {
+        // Both directions replace what they can't map rather than failing
+        Writer xml = new BufferedWriter(new OutputStreamWriter(out, PatchWriter.CHARSET), 64 * 1024);
+        xml.write("<?xml version=\"1.0\" encoding=\"" + PatchWriter.CHARSET.name() + "\"?>\n<addPatch><repository>"
+                + StringEscapeUtils.escapeXml(repository) + "</repository><patch><![CDATA[");
+        Reader in = new InputStreamReader(patch.open(), PatchWriter.CHARSET);
+        try {
+            char[] buf = new char[32 * 1024];
+            int brackets = 0;
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                int from = 0;
+                for (int i = 0; i < n; i++) {
+                    char c = buf[i];
+                    if (c == '>' && brackets >= 2) {
+                        // "]]>" would end the section: end it before the '>' and carry on in a new one
+                        xml.write(buf, from, i - from);
+                        xml.write("]]><![CDATA[");
+                        from = i;
+                    } else if (!isXmlChar(c)) {
+                        xml.write(buf, from, i - from);
+                        xml.write('\uFFFD');
+                        from = i + 1;
+                    }
+                    brackets = c == ']' ? brackets + 1 : 0;
+                }
+                xml.write(buf, from, n - from);
+            }
+        } finally {
+            in.close();
+        }
+        xml.write("]]></patch>");
+        if (anchorPath != null) {
+            xml.write("<anchor><anchorPath>" + StringEscapeUtils.escapeXml(anchorPath) + "</anchorPath>"
+                    + "<anchorRepository>" + StringEscapeUtils.escapeXml(repository) + "</anchorRepository></anchor>");
+        }
+        xml.write("</addPatch>");
+        xml.flush();
+    }
+
+    /**
+     * Returns false for the control characters XML 1.0 does not allow anywhere, even in CDATA.
+     */
+    private static boolean isXmlChar(char c) {
+        return c >= 0x20 ? c < 0xFFFE : c == '\t' || c == '\n' || c == '\r';
+    }
+
+    public long getContentLength() {
+        return -1;
+    }
+
+    public String getContentType() {
+        return "application/xml; charset=" + PatchWriter.CHARSET.name();
+    }
+
+}
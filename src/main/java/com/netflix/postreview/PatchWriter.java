@@ -0,0 +1,165 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Writes a patch as newline separated lines to a byte stream, in the platform charset that file contents are read
+ * with. Whole added or deleted files are copied in from their raw bytes a line at a time: the bytes are only
+ * scanned for line breaks, never decoded into strings.
+ */
+public class PatchWriter {
+    public static final Charset CHARSET = Charset.defaultCharset();
+
+    // Whether line breaks can be found by scanning encoded bytes for \n and \r, true of any ASCII based charset
+    private static final boolean BYTE_BREAKS = Arrays.equals("\r\n".getBytes(CHARSET), new byte[] {'\r', '\n'});
+
+    // Files at least this big are mapped rather than read
+    private static final long MAP_THRESHOLD = 256 * 1024;
+
+    private final OutputStream out;
+    private final Writer chars;
+    private final byte[] scratch = new byte[64 * 1024];
+    private boolean started;
+
+    public PatchWriter(OutputStream out) {
+        this.out = out;
+        chars = new OutputStreamWriter(out, CHARSET);
+    }
+
+    /**
+     * Writes a line, newline separated from any line before it, so the patch has no trailing newline.
+     */
+    public void line(String line) throws IOException {
+        if (started) {
+            chars.write('\n');
+        }
+        chars.write(line);
+        started = true;
+    }
+
+    /**
+     * Returns a writer for text that writes its own line separators, such as UnifiedDiff output following a
+     * header line.
+     */
+    public Writer writer() {
+        started = true;
+        return chars;
+    }
+
+    /**
+     * Writes every line of some text with a prefix, splitting lines the way Runner does: on \n, \r or \r\n, with
+     * no trailing empty line for a final terminator.
+     */
+    public void lines(char prefix, ByteBuffer text) throws IOException {
+        if (!BYTE_BREAKS) {
+            for (String line : Runner.splitLines(CHARSET.decode(text.duplicate()).toString())) {
+                line(prefix + line);
+            }
+            return;
+        }
+        chars.flush();
+        int end = text.limit();
+        int start = text.position();
+        for (int i = start; i < end; i++) {
+            byte b = text.get(i);
+            if (b == '\n' || b == '\r') {
+                writeLine(prefix, text, start, i);
+                if (b == '\r' && i + 1 < end && text.get(i + 1) == '\n') i++;
+                start = i + 1;
+            }
+        }
+        if (start < end) {
+            writeLine(prefix, text, start, end);
+        }
+    }
+
+    private void writeLine(char prefix, ByteBuffer text, int from, int to) throws IOException {
+        if (started) {
+            out.write('\n');
+        }
+        out.write(prefix);
+        if (text.hasArray()) {
+            out.write(text.array(), text.arrayOffset() + from, to - from);
+        } else {
+            ByteBuffer slice = text.duplicate();
+            slice.position(from);
+            while (slice.position() < to) {
+                int n = Math.min(scratch.length, to - slice.position());
+                slice.get(scratch, 0, n);
+                out.write(scratch, 0, n);
+            }
+        }
+        started = true;
+    }
+
+    public void flush() throws IOException {
+        chars.flush();
+        out.flush();
+    }
+
+    /**
+     * Returns the number of lines in some text, as split by lines().
+     */
+    public static int countLines(ByteBuffer text) {
+        if (!BYTE_BREAKS) {
+            return Runner.splitLines(CHARSET.decode(text.duplicate()).toString()).size();
+        }
+        int count = 0;
+        int end = text.limit();
+        int start = text.position();
+        for (int i = start; i < end; i++) {
+            byte b = text.get(i);
+            if (b == '\n' || b == '\r') {
+                count++;
+                if (b == '\r' && i + 1 < end && text.get(i + 1) == '\n') i++;
+                start = i + 1;
+            }
+        }
+        return start < end ? count + 1 : count;
+    }
+
+    /**
+     * Returns the content of a local file, memory mapped if it is big so it is paged in rather than copied.
+     */
+    public static ByteBuffer read(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to read: " + file);
+            }
+            if (size >= MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            return ByteBuffer.wrap(Runner.readFileBytes(file.getPath()));
+        } finally {
+            in.close();
+        }
+    }
+
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+/**
+ * Persistent local index from change ids to the keys of their open reviews, so a review can be found with one
+ * lookup instead of scanning every open review of an author. Entries are scoped by server and author. Changes
+ * known to have no review are remembered too, but only for a limited time since a review may be created
+ * elsewhere. Change ids of reviews match by prefix in either direction, like the title scan does.
+ */
+public class ReviewIndex {
+    private static final String MISSING = "none@";
+
+    private final File file;
+    private final long missingTtl;
+    private final Properties entries = new Properties();
+
+    private ReviewIndex(File file, long missingTtl) {
+        this.file = file;
+        this.missingTtl = missingTtl;
+    }
+
+    /**
+     * Loads the index from a file. A missing or unreadable file gives an empty index.
+     */
+    public static ReviewIndex load(File file, long missingTtlMillis) {
+        ReviewIndex index = new ReviewIndex(file, missingTtlMillis);
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                index.entries.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // OK, no index yet
+        }
+        return index;
+    }
+
+    /**
+     * Returns the indexed review key for a change, or null if none is indexed. An entry for the exact change id
+     * wins, then the longest prefix related one.
+     */
+    public synchronized String find(String scope, String changeId) {
+        String value = entries.getProperty(key(scope, changeId));
+        if (value != null && !value.startsWith(MISSING)) {
+            return value;
+        }
+        String prefix = scope + "|";
+        String best = null;
+        int bestLength = -1;
+        for (String key : entries.stringPropertyNames()) {
+            if (key.startsWith(prefix)) {
+                String cid = key.substring(prefix.length());
+                String review = entries.getProperty(key);
+                if ((cid.startsWith(changeId) || changeId.startsWith(cid)) && !review.startsWith(MISSING)
+                        && (cid.length() > bestLength || (cid.length() == bestLength && review.compareTo(best) < 0))) {
+                    best = review;
+                    bestLength = cid.length();
+                }
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns true if the change was recently found to have no review. Only an entry for the exact change id
+     * counts, as a related change having no review says nothing about this one.
+     */
+    public synchronized boolean isKnownMissing(String scope, String changeId) {
+        String value = entries.getProperty(key(scope, changeId));
+        if (value == null || !value.startsWith(MISSING)) {
+            return false;
+        }
+        try {
+            return System.currentTimeMillis() - Long.parseLong(value.substring(MISSING.length())) < missingTtl;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    public synchronized void put(String scope, String changeId, String reviewKey) {
+        entries.setProperty(key(scope, changeId), reviewKey);
+    }
+
+    public synchronized void putMissing(String scope, String changeId) {
+        entries.setProperty(key(scope, changeId), MISSING + System.currentTimeMillis());
+    }
+
+    /**
+     * Drops the entry for exactly this change id.
+     */
+    public synchronized void remove(String scope, String changeId) {
+        entries.remove(key(scope, changeId));
+    }
+
+    /**
+     * Drops every entry in the scope that points at a review, for a review that turned out to be stale.
+     */
+    public synchronized void removeReview(String scope, String reviewKey) {
+        String prefix = scope + "|";
+        for (String key : entries.stringPropertyNames()) {
+            if (key.startsWith(prefix) && reviewKey.equals(entries.getProperty(key))) {
+                entries.remove(key);
+            }
+        }
+    }
+
+    private static String key(String scope, String changeId) {
+        return scope + "|" + changeId;
+    }
+
+    public synchronized void save() {
+        try {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            File temp = new File(file.getPath() + ".tmp");
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                entries.store(out, "post2crucible change to review index");
+            } finally {
+                out.close();
+            }
+            file.delete();
+            temp.renameTo(file);
+        } catch (IOException e) {
+            // Can't save the index, the next run will just scan again.
+        }
+    }
+
+}
@@ -0,0 +1,252 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import com.atlassian.theplugin.commons.crucible.api.UploadItem;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+/**
+ * Local record of the content last uploaded to a review, as a hash of each file's old and new content. Used to
+ * upload only the items that changed since the previous update of the same review.
+ * <p>
+ * While an upload is running, each item is also appended to a journal as the server acknowledges it, so an
+ * interrupted upload loses nothing already sent. The journal is folded back in on the next load, and records
+ * which planned items were never acknowledged so they can be resumed.
+ */
+public class ReviewManifest implements UploadListener {
+    private static final String PLANNED = "?";
+    private static final String UPLOADED = "+";
+
+    private final File file;
+    private final File journalFile;
+    private final Properties hashes = new Properties();
+    private final Map<String, String> pendingHashes = new HashMap<String, String>();
+    private final Set<String> unfinished = new HashSet<String>();
+    private int uploadedCount;
+    private OutputStream journal;
+
+    private ReviewManifest(File dir, String reviewKey) {
+        this.file = new File(dir, reviewKey + ".properties");
+        this.journalFile = new File(dir, reviewKey + ".journal");
+    }
+
+    /**
+     * Loads the manifest for a review from the given directory, along with the journal of any interrupted
+     * upload. A missing or unreadable manifest is empty.
+     */
+    public static ReviewManifest load(File dir, String reviewKey) {
+        ReviewManifest manifest = new ReviewManifest(dir, reviewKey);
+        try {
+            InputStream in = new FileInputStream(manifest.file);
+            try {
+                manifest.hashes.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // OK, nothing uploaded through this manifest yet
+        }
+        manifest.replayJournal();
+        return manifest;
+    }
+
+    private void replayJournal() {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    String[] fields = line.split("\t");
+                    if (fields.length == 2 && fields[0].equals(PLANNED)) {
+                        unfinished.add(fields[1]);
+                    } else if (fields.length == 3 && fields[0].equals(UPLOADED)) {
+                        unfinished.remove(fields[1]);
+                        hashes.setProperty(fields[1], fields[2]);
+                    }
+                    // else a line torn by the interruption, ignore it
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // OK, no interrupted upload
+        }
+    }
+
+    public synchronized boolean isUnfinished(UploadItem item) {
+        return unfinished.contains(item.getFileName());
+    }
+
+    /**
+     * Returns true if the item's content differs from what was last recorded for the review. The hash of a
+     * changed item is kept by file name until uploaded() records it, so its content is only read once, while the
+     * item itself is not held on to.
+     */
+    public synchronized boolean isChanged(UploadItem item) throws IOException {
+        String hash = hash(item);
+        if (hash.equals(hashes.getProperty(item.getFileName()))) {
+            return false;
+        }
+        pendingHashes.put(item.getFileName(), hash);
+        return true;
+    }
+
+    /**
+     * Starts a fresh journal for an upload whose items are not known yet. Each is added with planned() as it is
+     * about to be uploaded, recorded and journaled by uploaded() as it is acknowledged, and save() ends the
+     * journal. Items an interrupted upload left unfinished are carried over as planned up front, so they are
+     * still resumed if this upload is interrupted before reaching them.
+     */
+    public synchronized void begin() throws IOException {
+        endJournal();
+        uploadedCount = 0;
+        journalFile.getParentFile().mkdirs();
+        journal = new FileOutputStream(journalFile);
+        StringBuilder sb = new StringBuilder();
+        for (String name : unfinished) {
+            sb.append(PLANNED).append('\t').append(name).append('\n');
+        }
+        journal.write(sb.toString().getBytes("UTF-8"));
+        journal.flush();
+    }
+
+    public synchronized void planned(UploadItem item) throws IOException {
+        if (journal != null) {
+            journal.write((PLANNED + '\t' + item.getFileName() + '\n').getBytes("UTF-8"));
+            journal.flush();
+        }
+    }
+
+    public synchronized void uploaded(UploadItem item) {
+        try {
+            String hash = pendingHashes.remove(item.getFileName());
+            if (hash == null) {
+                hash = hash(item);
+            }
+            hashes.setProperty(item.getFileName(), hash);
+            unfinished.remove(item.getFileName());
+            uploadedCount++;
+            if (journal != null) {
+                String line = UPLOADED + '\t' + item.getFileName() + '\t' + hash + '\n';
+                journal.write(line.getBytes("UTF-8"));
+                journal.flush();
+            }
+        } catch (IOException e) {
+            // Can't journal the item, an interrupted upload will just send it again.
+        }
+    }
+
+    /**
+     * Returns the number of items acknowledged since begin().
+     */
+    public synchronized int uploadedCount() {
+        return uploadedCount;
+    }
+
+    private void endJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) {
+                // nothing more to write anyway
+            }
+            journal = null;
+        }
+    }
+
+    /**
+     * Persists the recorded hashes and discards the journal they now include.
+     */
+    public synchronized void save() {
+        endJournal();
+        try {
+            file.getParentFile().mkdirs();
+            File temp = new File(file.getPath() + ".tmp");
+            OutputStream out = new FileOutputStream(temp);
+            try {
+                hashes.store(out, "post2crucible uploaded content");
+            } finally {
+                out.close();
+            }
+            file.delete();
+            if (temp.renameTo(file)) {
+                journalFile.delete();
+            }
+        } catch (IOException e) {
+            // Can't save the manifest, the next update will just upload everything again.
+        }
+    }
+
+    private static String hash(UploadItem item) throws IOException {
+        return digest(oldContent(item)) + ":" + digest(newContent(item));
+    }
+
+    private static InputStream oldContent(UploadItem item) throws IOException {
+        if (item instanceof SourceUploadItem) {
+            ContentSource source = ((SourceUploadItem) item).getOldSource();
+            return source != null ? source.open() : null;
+        }
+        return item.getOldContent() != null ? new ByteArrayInputStream(item.getOldContent()) : null;
+    }
+
+    private static InputStream newContent(UploadItem item) throws IOException {
+        if (item instanceof SourceUploadItem) {
+            ContentSource source = ((SourceUploadItem) item).getNewSource();
+            return source != null ? source.open() : null;
+        }
+        return item.getNewContent() != null ? new ByteArrayInputStream(item.getNewContent()) : null;
+    }
+
+    private static String digest(InputStream in) throws IOException {
+        if (in == null) {
+            return "-";
+        }
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                md.update(buf, 0, n);
+            }
+            StringBuilder sb = new StringBuilder(40);
+            for (byte b : md.digest()) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            in.close();
+        }
+    }
+
+}
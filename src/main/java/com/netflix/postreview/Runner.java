@@ -15,19 +15,19 @@
  */
 package com.netflix.postreview;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.logging.Logger;
 
 /**
@@ -38,17 +38,86 @@ public class Runner {
 
     protected Map<String, String> environment = new HashMap<String, String>();
     protected File workingDir;
+    private ContentCache cache;
 
-    public byte[] execAndReadBytes(String[] args) throws IOException {
+    /**
+     * Sets the cache used for immutable content fetched through this runner, or null for no caching.
+     */
+    public void setCache(ContentCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Returns the namespace that makes content ids from this runner unique in a shared cache, or null if its
+     * content should not be cached.
+     */
+    protected String cacheNamespace() {
+        return null;
+    }
+
+    /**
+     * Returns cached immutable content for an id within this runner's namespace, or null on a miss.
+     */
+    public byte[] cachedContent(String id) {
+        String namespace = cacheNamespace();
+        return cache != null && namespace != null ? cache.get(namespace + ":" + id) : null;
+    }
+
+    /**
+     * Returns a streaming source for cached immutable content, or null on a miss.
+     */
+    public ContentSource cachedSource(String id) {
+        String namespace = cacheNamespace();
+        return cache != null && namespace != null ? cache.source(namespace + ":" + id) : null;
+    }
+
+    /**
+     * Stores immutable content for an id within this runner's namespace, if caching is enabled.
+     */
+    public void cacheContent(String id, byte[] content) {
+        String namespace = cacheNamespace();
+        if (cache != null && namespace != null) {
+            cache.put(namespace + ":" + id, content);
+        }
+    }
+
+    /**
+     * The complete output of a process or stream, held as a single exact-sized byte array that can be viewed as
+     * bytes, a String or lines without reading it again.
+     */
+    public static class Output {
+        private final byte[] bytes;
+
+        public Output(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        public int length() { return bytes.length; }
+
+        public byte[] bytes() { return bytes; }
+
+        public String string() { return new String(bytes, 0, bytes.length, Charset.defaultCharset()); }
+
+        public List<String> lines() { return splitLines(string()); }
+    }
+
+    /**
+     * Runs a command and reads all of its output, whose size isn't known up front.
+     */
+    public Output execAndRead(String[] args) throws IOException {
         Process process = start(args);
-        byte[] bytes = readAllBytes(new BufferedInputStream(process.getInputStream()));
+        Output output = readAll(process.getInputStream(), 0);
         close(process);
-        return bytes;
+        return output;
+    }
+
+    public byte[] execAndReadBytes(String[] args) throws IOException {
+        return execAndRead(args).bytes();
     }
 
     public String execAndReadString(String[] args) throws IOException {
         Process process = start(args);
-        String string = readAllString(new BufferedReader(new InputStreamReader(process.getInputStream())));
+        String string = readAll(process.getInputStream(), 0).string();
         close(process);
         if (process.exitValue() != 0) {
             throw new IOException("Non-zero exit code " + process.exitValue() + ":\n" + string);
@@ -57,11 +126,7 @@ public class Runner {
     }
 
     public List<String> execAndReadLines(String[] args) throws IOException {
-        Process process = start(args);
-        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
-        List<String> lines = readAllLines(reader);
-        close(process);
-        return lines;
+        return execAndRead(args).lines();
     }
 
     private static void logArgs(String[] args) {
@@ -74,10 +139,18 @@ public class Runner {
     }
 
     public Process start(String[] args) throws IOException {
+        return start(args, true);
+    }
+
+    /**
+     * Starts a process, optionally leaving stderr separate for commands whose stdout is a binary protocol that
+     * error text would corrupt. The caller must then consume the error stream itself.
+     */
+    public Process start(String[] args, boolean mergeErrors) throws IOException {
         ProcessBuilder builder = new ProcessBuilder(args);
         builder.environment().putAll(environment);
         if (workingDir != null) builder.directory(workingDir);
-        builder.redirectErrorStream(true);
+        builder.redirectErrorStream(mergeErrors);
         logArgs(args);
         try {
             return builder.start();
@@ -86,6 +159,29 @@ public class Runner {
         }
     }
 
+    /**
+     * Copies a process error stream to stdout on a daemon thread, for processes started without merged errors,
+     * so that error output neither blocks the process nor gets lost.
+     */
+    public static void drain(final InputStream errors) {
+        Thread drainer = new Thread("stderr drain") {
+            public void run() {
+                try {
+                    byte[] buf = new byte[4096];
+                    int n;
+                    while ((n = errors.read(buf)) != -1) {
+                        System.out.write(buf, 0, n);
+                    }
+                    System.out.flush();
+                } catch (IOException e) {
+                    // process is gone, nothing left to drain
+                }
+            }
+        };
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
     public static void close(Process process) {
         try {
             process.getInputStream().close();
@@ -96,23 +192,105 @@ public class Runner {
         process.destroy();
     }
 
+    // Pooled read buffers
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_CHUNKS = 32;
+    private static final ConcurrentLinkedQueue<ByteBuffer> chunkPool = new ConcurrentLinkedQueue<ByteBuffer>();
+
+    private static ByteBuffer acquireChunk() {
+        ByteBuffer chunk = chunkPool.poll();
+        if (chunk == null) {
+            chunk = ByteBuffer.allocate(CHUNK_SIZE);
+        }
+        chunk.clear();
+        return chunk;
+    }
+
+    private static void releaseChunk(ByteBuffer chunk) {
+        if (chunk.capacity() == CHUNK_SIZE && chunkPool.size() < MAX_POOLED_CHUNKS) {
+            chunkPool.offer(chunk);
+        }
+    }
+
+    /**
+     * Fills the remainder of the given heap buffer from the stream using bulk reads into its backing array.
+     * Returns false once the stream is exhausted.
+     */
+    private static boolean fill(InputStream is, ByteBuffer buf) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = is.read(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining());
+            if (n == -1) return false;
+            buf.position(buf.position() + n);
+        }
+        return true;
+    }
+
     // InputStream and Reader reading
 
-    public static byte[] readAllBytes(InputStream is) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        int ch;
-        while ((ch = is.read()) != -1) {
-            bos.write(ch);
+    /**
+     * Reads a stream to its end and closes it. When the size of the output is known or can be estimated, a
+     * sizeHint lets an exactly matching output be read in place with no copying at all. Otherwise the output is
+     * drained into pooled chunks and then copied once into an exact-sized array. The hinted buffer is never
+     * pooled, as it may be handed back as the output itself.
+     */
+    public static Output readAll(InputStream is, int sizeHint) throws IOException {
+        ByteBuffer first = null;
+        List<ByteBuffer> chunks = new ArrayList<ByteBuffer>();
+        try {
+            boolean more = true;
+            if (sizeHint > 0) {
+                first = ByteBuffer.allocate(sizeHint);
+                more = fill(is, first);
+                if (more) {
+                    int ch = is.read();
+                    if (ch == -1) {
+                        return new Output(first.array());  // exact hint, nothing more to copy
+                    }
+                    ByteBuffer next = acquireChunk();
+                    next.put((byte) ch);
+                    chunks.add(next);
+                    more = fill(is, next);
+                }
+            }
+            while (more) {
+                ByteBuffer chunk = acquireChunk();
+                chunks.add(chunk);
+                more = fill(is, chunk);
+            }
+            int total = first != null ? first.position() : 0;
+            for (ByteBuffer chunk : chunks) {
+                total += chunk.position();
+            }
+            byte[] bytes = new byte[total];
+            int offset = 0;
+            if (first != null) {
+                System.arraycopy(first.array(), first.arrayOffset(), bytes, 0, first.position());
+                offset = first.position();
+            }
+            for (ByteBuffer chunk : chunks) {
+                System.arraycopy(chunk.array(), chunk.arrayOffset(), bytes, offset, chunk.position());
+                offset += chunk.position();
+            }
+            return new Output(bytes);
+        } finally {
+            for (ByteBuffer chunk : chunks) {
+                releaseChunk(chunk);
+            }
+            is.close();
         }
-        is.close();
-        return bos.toByteArray();
+    }
+
+    public static byte[] readAllBytes(InputStream is) throws IOException {
+        return readAll(is, 0).bytes();
     }
 
     public static String readAllString(BufferedReader br) throws IOException {
         StringBuilder sb = new StringBuilder();
-        int ch;
-        while ((ch = br.read()) != -1) {
-            sb.append((char) ch);
+        char[] cbuf = new char[8192];
+        int n;
+        while ((n = br.read(cbuf)) != -1) {
+            sb.append(cbuf, 0, n);
         }
         br.close();
         return sb.toString();
@@ -128,18 +306,72 @@ public class Runner {
         return lines;
     }
 
+    /**
+     * Splits a string into lines the same way BufferedReader.readLine() does: on \n, \r or \r\n, with no
+     * trailing empty line for a final terminator.
+     */
+    static List<String> splitLines(String s) {
+        List<String> lines = new ArrayList<String>();
+        int len = s.length();
+        int start = 0;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c == '\n' || c == '\r') {
+                lines.add(s.substring(start, i));
+                if (c == '\r' && i + 1 < len && s.charAt(i + 1) == '\n') i++;
+                start = i + 1;
+            }
+        }
+        if (start < len) {
+            lines.add(s.substring(start));
+        }
+        return lines;
+    }
+
     // Local file reading
 
+    /**
+     * Reads a whole local file, sizing the result from the file's length and filling it with channel reads.
+     */
+    public static Output readFile(String filename) throws IOException {
+        FileInputStream fis = new FileInputStream(filename);
+        try {
+            FileChannel channel = fis.getChannel();
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("File too large to read: " + filename);
+            }
+            ByteBuffer buf = ByteBuffer.allocate((int) size);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf) == -1) break;
+            }
+            if (buf.hasRemaining()) {
+                // File shrank while reading, keep what was there
+                byte[] bytes = new byte[buf.position()];
+                System.arraycopy(buf.array(), 0, bytes, 0, bytes.length);
+                return new Output(bytes);
+            }
+            if (fis.read() != -1) {
+                // File grew while reading, fall back to draining it
+                fis.close();
+                return readAll(new FileInputStream(filename), (int) size);
+            }
+            return new Output(buf.array());
+        } finally {
+            fis.close();
+        }
+    }
+
     public static byte[] readFileBytes(String filename) throws IOException {
-        return readAllBytes(new BufferedInputStream(new FileInputStream(filename)));
+        return readFile(filename).bytes();
     }
 
     public static String readFileString(String filename) throws IOException {
-        return readAllString(new BufferedReader(new FileReader(filename)));
+        return readFile(filename).string();
     }
 
     public static List<String> readFileLines(String filename) throws IOException {
-        return readAllLines(new BufferedReader(new FileReader(filename)));
+        return readFile(filename).lines();
     }
 
 }
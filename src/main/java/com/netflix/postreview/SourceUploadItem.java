@@ -0,0 +1,55 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import com.atlassian.theplugin.commons.crucible.api.UploadItem;
+
+import java.io.IOException;
+
+/**
+ * An UploadItem whose old and new contents are streamed from ContentSources when uploaded, rather than held as
+ * byte arrays. A null source means that side of the pair is absent. The byte array accessors still work, reading
+ * the content on demand, for code that only understands plain UploadItems.
+ */
+public class SourceUploadItem extends UploadItem {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final ContentSource oldSource;
+    private final ContentSource newSource;
+
+    public SourceUploadItem(String fileName, ContentSource oldSource, ContentSource newSource) {
+        super(fileName, EMPTY, EMPTY);
+        this.oldSource = oldSource;
+        this.newSource = newSource;
+    }
+
+    public ContentSource getOldSource() { return oldSource; }
+
+    public ContentSource getNewSource() { return newSource; }
+
+    @Override public byte[] getOldContent() { return read(oldSource); }
+
+    @Override public byte[] getNewContent() { return read(newSource); }
+
+    private byte[] read(ContentSource source) {
+        try {
+            return source != null ? source.bytes() : null;
+        } catch (IOException e) {
+            throw new IllegalStateException("Unable to read content of " + getFileName(), e);
+        }
+    }
+
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Output stream that buffers in memory up to a limit and spills everything to a temporary file past it, so that
+ * content of any size can be built up and then streamed out again as a ContentSource without being held on the
+ * heap.
+ */
+public class SpillBuffer extends OutputStream {
+    private final int memoryLimit;
+    private Memory memory = new Memory();
+    private File file;
+    private OutputStream fileOut;
+    private long length;
+
+    /**
+     * A byte array stream whose content can be read back in place.
+     */
+    private static class Memory extends ByteArrayOutputStream {
+        ContentSource source() {
+            return new ContentSource() {
+                public long length() { return count; }
+                public InputStream open() { return new ByteArrayInputStream(buf, 0, count); }
+            };
+        }
+    }
+
+    public SpillBuffer(int memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    @Override public void write(int b) throws IOException {
+        target(1).write(b);
+        length++;
+    }
+
+    @Override public void write(byte[] b, int off, int len) throws IOException {
+        target(len).write(b, off, len);
+        length += len;
+    }
+
+    public long length() { return length; }
+
+    /**
+     * Returns where the next bytes go, spilling to the file first if they would take memory past the limit.
+     */
+    private OutputStream target(int len) throws IOException {
+        if (file == null && memory.size() + (long) len > memoryLimit) {
+            file = File.createTempFile("post2crucible", ".spill");
+            file.deleteOnExit();
+            fileOut = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+            memory.writeTo(fileOut);
+            memory = null;
+        }
+        return file != null ? fileOut : memory;
+    }
+
+    @Override public void flush() throws IOException {
+        if (fileOut != null) {
+            fileOut.flush();
+        }
+    }
+
+    @Override public void close() throws IOException {
+        if (fileOut != null) {
+            fileOut.close();
+        }
+    }
+
+    /**
+     * Ends the writing and returns the content, which stays readable until the buffer is deleted.
+     */
+    public ContentSource toSource() throws IOException {
+        close();
+        return file != null ? ContentSource.of(file) : memory.source();
+    }
+
+    /**
+     * Releases the content, removing the spill file if there is one.
+     */
+    public void delete() {
+        try {
+            close();
+        } catch (IOException e) { }
+        if (file != null && !file.delete()) {
+            file.deleteOnExit();
+        }
+        memory = null;
+    }
+
+}
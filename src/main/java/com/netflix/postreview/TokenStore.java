@@ -0,0 +1,232 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.util.Properties;
+
+/**
+ * Saved Crucible auth tokens, one per server and user, with when each was last known to work and when it should
+ * no longer be trusted without checking. Updates are read-modify-write under a file lock and replace the file
+ * atomically, so concurrent runs sharing the store don't lose each other's tokens.
+ */
+public class TokenStore {
+
+    /**
+     * A saved token with its validation and expiry times.
+     */
+    public static class Token {
+        public final String token;
+        public final long validated;
+        public final long expires;
+
+        Token(String token, long validated, long expires) {
+            this.token = token;
+            this.validated = validated;
+            this.expires = expires;
+        }
+
+        /**
+         * Returns true if the token worked within the given window and hasn't expired, so it can be used without
+         * checking it first.
+         */
+        public boolean isFresh(long window) {
+            long now = System.currentTimeMillis();
+            return now - validated < window && now < expires;
+        }
+    }
+
+    private final File file;
+    private final File legacyFile;
+
+    /**
+     * Creates a store on the given file. A token in the legacy single-token file is picked up, unvalidated, for
+     * any scope the store has no token for.
+     */
+    public TokenStore(File file, File legacyFile) {
+        this.file = file;
+        this.legacyFile = legacyFile;
+    }
+
+    /**
+     * Returns the token saved for a scope, or null if none.
+     */
+    public Token load(String scope) {
+        Properties entries = read();
+        String token = entries.getProperty(scope + ".token");
+        if (token != null) {
+            return new Token(token, parseLong(entries.getProperty(scope + ".validated")),
+                    parseLong(entries.getProperty(scope + ".expires")));
+        }
+        if (legacyFile != null) {
+            try {
+                String legacy = Runner.readFileString(legacyFile.getPath()).trim();
+                if (legacy.length() > 0) {
+                    return new Token(legacy, 0, Long.MAX_VALUE);
+                }
+            } catch (IOException e) {
+                // OK, no legacy token either
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Saves a newly issued, and so just validated, token for a scope. This retires the legacy token file.
+     */
+    public void save(final String scope, final String token, final long lifetime) {
+        update(new Updater() {
+            public void update(Properties entries) {
+                long now = System.currentTimeMillis();
+                entries.setProperty(scope + ".token", token);
+                entries.setProperty(scope + ".validated", Long.toString(now));
+                entries.setProperty(scope + ".expires", Long.toString(now + lifetime));
+            }
+        });
+        dropLegacy(null);
+    }
+
+    /**
+     * Records that a token was just seen to work, if it is still the one saved for the scope.
+     */
+    public void validated(final String scope, final String token, final long lifetime) {
+        update(new Updater() {
+            public void update(Properties entries) {
+                String saved = entries.getProperty(scope + ".token");
+                if (saved == null || saved.equals(token)) {
+                    long now = System.currentTimeMillis();
+                    entries.setProperty(scope + ".token", token);
+                    entries.setProperty(scope + ".validated", Long.toString(now));
+                    if (saved == null) {
+                        entries.setProperty(scope + ".expires", Long.toString(now + lifetime));
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Forgets a token found to be bad, unless another run has already replaced it.
+     */
+    public void remove(final String scope, final String token) {
+        update(new Updater() {
+            public void update(Properties entries) {
+                if (token.equals(entries.getProperty(scope + ".token"))) {
+                    entries.remove(scope + ".token");
+                    entries.remove(scope + ".validated");
+                    entries.remove(scope + ".expires");
+                }
+            }
+        });
+        dropLegacy(token);
+    }
+
+    /**
+     * Deletes the legacy token file once its token has been replaced, or when it holds the given bad token.
+     */
+    private void dropLegacy(String token) {
+        if (legacyFile != null && legacyFile.exists()) {
+            try {
+                if (token == null || Runner.readFileString(legacyFile.getPath()).trim().equals(token)) {
+                    legacyFile.delete();
+                }
+            } catch (IOException e) {
+                // leave it be
+            }
+        }
+    }
+
+    private interface Updater {
+        void update(Properties entries);
+    }
+
+    private void update(Updater updater) {
+        // File locks only exclude other processes, so threads of this one take turns first
+        synchronized (TokenStore.class) {
+            updateLocked(updater);
+        }
+    }
+
+    private void updateLocked(Updater updater) {
+        try {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+            RandomAccessFile lockFile = new RandomAccessFile(file.getPath() + ".lock", "rw");
+            try {
+                FileLock lock = lockFile.getChannel().lock();
+                try {
+                    Properties entries = read();
+                    updater.update(entries);
+                    write(entries);
+                } finally {
+                    lock.release();
+                }
+            } finally {
+                lockFile.close();
+            }
+        } catch (IOException e) {
+            // Can't save the token, but not much we can do about it, so just carry on.
+        }
+    }
+
+    private Properties read() {
+        Properties entries = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                entries.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            // OK, no tokens saved yet
+        }
+        return entries;
+    }
+
+    private void write(Properties entries) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            // Keep tokens private to the user
+            temp.setReadable(false, false);
+            temp.setReadable(true, true);
+            entries.store(out, "post2crucible auth tokens");
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Can't replace " + file);
+            }
+        }
+    }
+
+    private static long parseLong(String value) {
+        try {
+            return value != null ? Long.parseLong(value) : 0;
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
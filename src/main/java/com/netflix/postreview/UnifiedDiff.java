@@ -0,0 +1,358 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Line diff of two texts, written straight out as unified diff hunks in the same format as java-diff-utils'
+ * generateUnifiedDiff. Lines are interned to int ids up front so that the diff itself only compares ints. It is a
+ * histogram diff: each region is anchored on the longest common run around the rarest lines both sides share,
+ * falling back to Myers' O(ND) diff for regions where every shared line is too common to anchor on.
+ * <p>
+ * The diff always turns the original into the revised lines, but it is not always minimal or the same as
+ * java-diff-utils' output. Anchoring on rare lines commits to them before looking for the shortest edit script, so
+ * some diffs come out a few lines longer. Where several scripts are equally short, this one may also pick a
+ * different one, such as matching a different copy of a repeated brace line.
+ */
+public class UnifiedDiff {
+
+    // Lines occurring more often than this in a region are not used as anchors
+    private static final int MAX_CHAIN = 64;
+
+    /**
+     * A changed region: original lines aStart..aEnd are replaced by revised lines bStart..bEnd.
+     */
+    static class Edit {
+        final int aStart;
+        final int bStart;
+        int aEnd;
+        int bEnd;
+
+        Edit(int aStart, int aEnd, int bStart, int bEnd) {
+            this.aStart = aStart;
+            this.aEnd = aEnd;
+            this.bStart = bStart;
+            this.bEnd = bEnd;
+        }
+    }
+
+    private final int[] a;
+    private final int[] b;
+    private final List<Edit> edits = new ArrayList<Edit>();
+
+    // Histogram of the region being anchored: counts and first position by line id, chained by original line
+    private final int[] counts;
+    private final int[] heads;
+    private final int[] next;
+
+    // Myers furthest reaching paths, forward and backward, shared by all fallback regions
+    private int[] forward;
+    private int[] backward;
+
+    private UnifiedDiff(int[] a, int[] b, int ids) {
+        this.a = a;
+        this.b = b;
+        counts = new int[ids];
+        heads = new int[ids];
+        next = new int[a.length];
+    }
+
+    /**
+     * Writes the unified diff of two line lists with the given number of context lines around each change. Every
+     * line is written preceded by a newline, as the diff follows a file header in a patch. Writes nothing and
+     * returns false when the lists are equal.
+     */
+    public static boolean write(Writer out, String originalTag, String revisedTag,
+            List<String> original, List<String> revised, int context) throws IOException {
+        List<Edit> edits = diff(original, revised);
+        if (edits.isEmpty()) {
+            return false;
+        }
+        writeLine(out, "--- ", originalTag);
+        writeLine(out, "+++ ", revisedTag);
+        for (int first = 0; first < edits.size(); ) {
+            int last = first;
+            while (last + 1 < edits.size() && edits.get(last).aEnd + context >= edits.get(last + 1).aStart - context) {
+                last++;
+            }
+            writeHunk(out, original, revised, edits.subList(first, last + 1), context);
+            first = last + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the changed regions between two line lists, in order.
+     */
+    static List<Edit> diff(List<String> original, List<String> revised) {
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        int[] a = intern(original, ids);
+        int[] b = intern(revised, ids);
+        UnifiedDiff diff = new UnifiedDiff(a, b, ids.size());
+        diff.histogram(0, a.length, 0, b.length);
+        return diff.edits;
+    }
+
+    private static int[] intern(List<String> lines, Map<String, Integer> ids) {
+        int[] interned = new int[lines.size()];
+        int i = 0;
+        for (String line : lines) {
+            Integer id = ids.get(line);
+            if (id == null) {
+                id = ids.size();
+                ids.put(line, id);
+            }
+            interned[i++] = id;
+        }
+        return interned;
+    }
+
+    /**
+     * Diffs a region by splitting it around anchors. Regions are kept on a stack, left part on top, instead of
+     * recursing, so the edits still come out in order however deeply a large file splits.
+     */
+    private void histogram(int aStart, int aEnd, int bStart, int bEnd) {
+        List<int[]> regions = new ArrayList<int[]>();
+        regions.add(new int[] {aStart, aEnd, bStart, bEnd});
+        while (!regions.isEmpty()) {
+            int[] r = regions.remove(regions.size() - 1);
+            int as = r[0], ae = r[1], bs = r[2], be = r[3];
+            while (as < ae && bs < be && a[as] == b[bs]) { as++; bs++; }
+            while (as < ae && bs < be && a[ae - 1] == b[be - 1]) { ae--; be--; }
+            if (as == ae || bs == be) {
+                add(as, ae, bs, be);
+                continue;
+            }
+            int[] anchor = anchor(as, ae, bs, be);
+            if (anchor == null) {
+                myers(as, ae, bs, be);
+            } else if (anchor.length == 0) {
+                add(as, ae, bs, be);  // nothing in common
+            } else {
+                regions.add(new int[] {anchor[0] + anchor[2], ae, anchor[1] + anchor[2], be});
+                regions.add(new int[] {as, anchor[0], bs, anchor[1]});
+            }
+        }
+    }
+
+    /**
+     * Finds the longest common run around the rarest shared lines of a region, returning its original start,
+     * revised start and length. Returns an empty array if the sides share no line at all, or null if every shared
+     * line is too common.
+     */
+    private int[] anchor(int aStart, int aEnd, int bStart, int bEnd) {
+        for (int i = aEnd - 1; i >= aStart; i--) {
+            int id = a[i];
+            next[i] = counts[id] == 0 ? -1 : heads[id];
+            heads[id] = i;
+            counts[id]++;
+        }
+
+        boolean shared = false;
+        int bestCount = MAX_CHAIN;
+        int bestLength = 0;
+        int bestA = -1;
+        int bestB = -1;
+        for (int j = bStart; j < bEnd; ) {
+            int count = counts[b[j]];
+            int nextJ = j + 1;
+            if (count > 0) {
+                shared = true;
+            }
+            if (count > 0 && count <= bestCount) {
+                for (int i = heads[b[j]]; i >= 0; i = next[i]) {
+                    int s = i, t = j;
+                    while (s > aStart && t > bStart && a[s - 1] == b[t - 1]) { s--; t--; }
+                    int e = i + 1, f = j + 1;
+                    int runCount = count;
+                    while (e < aEnd && f < bEnd && a[e] == b[f]) {
+                        runCount = Math.min(runCount, counts[a[e]]);
+                        e++;
+                        f++;
+                    }
+                    for (int k = s; k < i; k++) {
+                        runCount = Math.min(runCount, counts[a[k]]);
+                    }
+                    if (runCount < bestCount || (runCount == bestCount && e - s > bestLength)) {
+                        bestCount = runCount;
+                        bestLength = e - s;
+                        bestA = s;
+                        bestB = t;
+                    }
+                    nextJ = Math.max(nextJ, f);
+                }
+            }
+            j = nextJ;
+        }
+
+        for (int i = aStart; i < aEnd; i++) {
+            counts[a[i]] = 0;
+        }
+        if (bestA >= 0) {
+            return new int[] {bestA, bestB, bestLength};
+        }
+        return shared ? null : new int[0];
+    }
+
+    /**
+     * Diffs a region with Myers' linear space algorithm, splitting it at a point on a shortest edit path found by
+     * searching from both ends at once.
+     */
+    private void myers(int aStart, int aEnd, int bStart, int bEnd) {
+        while (aStart < aEnd && bStart < bEnd && a[aStart] == b[bStart]) { aStart++; bStart++; }
+        while (aStart < aEnd && bStart < bEnd && a[aEnd - 1] == b[bEnd - 1]) { aEnd--; bEnd--; }
+        if (aStart == aEnd || bStart == bEnd) {
+            add(aStart, aEnd, bStart, bEnd);
+            return;
+        }
+        int[] split = middle(aStart, aEnd, bStart, bEnd);
+        if (split == null || (split[0] == aStart && split[1] == bStart) || (split[0] == aEnd && split[1] == bEnd)) {
+            add(aStart, aEnd, bStart, bEnd);
+            return;
+        }
+        myers(aStart, split[0], bStart, split[1]);
+        myers(split[0], aEnd, split[1], bEnd);
+    }
+
+    private int[] middle(int aStart, int aEnd, int bStart, int bEnd) {
+        int n = aEnd - aStart;
+        int m = bEnd - bStart;
+        int maxD = (n + m + 1) / 2;
+        int offset = maxD;
+        int length = 2 * maxD;
+        if (forward == null || forward.length < length + 2) {
+            int size = a.length + b.length + 4;
+            forward = new int[size];
+            backward = new int[size];
+        }
+        Arrays.fill(forward, 0, length + 2, -1);
+        Arrays.fill(backward, 0, length + 2, -1);
+        forward[offset + 1] = 0;
+        backward[offset + 1] = 0;
+        int delta = n - m;
+        boolean front = (delta & 1) != 0;  // which search checks for overlap
+        int k1start = 0, k1end = 0, k2start = 0, k2end = 0;
+        for (int d = 0; d < maxD; d++) {
+            for (int k1 = -d + k1start; k1 <= d - k1end; k1 += 2) {
+                int k1Offset = offset + k1;
+                int x1 = k1 == -d || (k1 != d && forward[k1Offset - 1] < forward[k1Offset + 1])
+                        ? forward[k1Offset + 1] : forward[k1Offset - 1] + 1;
+                int y1 = x1 - k1;
+                while (x1 < n && y1 < m && a[aStart + x1] == b[bStart + y1]) { x1++; y1++; }
+                forward[k1Offset] = x1;
+                if (x1 > n) {
+                    k1end += 2;  // ran off the right of the graph
+                } else if (y1 > m) {
+                    k1start += 2;  // ran off the bottom
+                } else if (front) {
+                    int k2Offset = offset + delta - k1;
+                    if (k2Offset >= 0 && k2Offset < length && backward[k2Offset] != -1 && x1 >= n - backward[k2Offset]) {
+                        return new int[] {aStart + x1, bStart + y1};
+                    }
+                }
+            }
+            for (int k2 = -d + k2start; k2 <= d - k2end; k2 += 2) {
+                int k2Offset = offset + k2;
+                int x2 = k2 == -d || (k2 != d && backward[k2Offset - 1] < backward[k2Offset + 1])
+                        ? backward[k2Offset + 1] : backward[k2Offset - 1] + 1;
+                int y2 = x2 - k2;
+                while (x2 < n && y2 < m && a[aEnd - 1 - x2] == b[bEnd - 1 - y2]) { x2++; y2++; }
+                backward[k2Offset] = x2;
+                if (x2 > n) {
+                    k2end += 2;
+                } else if (y2 > m) {
+                    k2start += 2;
+                } else if (!front) {
+                    int k1Offset = offset + delta - k2;
+                    if (k1Offset >= 0 && k1Offset < length && forward[k1Offset] != -1) {
+                        int x1 = forward[k1Offset];
+                        int y1 = offset + x1 - k1Offset;
+                        if (x1 >= n - x2) {
+                            return new int[] {aStart + x1, bStart + y1};
+                        }
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Appends an edit, merging it into the previous one when they touch.
+     */
+    private void add(int aStart, int aEnd, int bStart, int bEnd) {
+        if (aStart == aEnd && bStart == bEnd) {
+            return;
+        }
+        Edit last = edits.isEmpty() ? null : edits.get(edits.size() - 1);
+        if (last != null && last.aEnd == aStart && last.bEnd == bStart) {
+            last.aEnd = aEnd;
+            last.bEnd = bEnd;
+        } else {
+            edits.add(new Edit(aStart, aEnd, bStart, bEnd));
+        }
+    }
+
+    /**
+     * Writes one hunk covering a run of edits close enough to share context. Start lines and counts are computed
+     * the same way as by generateUnifiedDiff, including starting both sides at line 1 when the context reaches
+     * back to the top.
+     */
+    private static void writeHunk(Writer out, List<String> original, List<String> revised, List<Edit> hunk,
+            int context) throws IOException {
+        Edit first = hunk.get(0);
+        Edit last = hunk.get(hunk.size() - 1);
+        int from = Math.max(0, first.aStart - context);
+        int to = Math.min(original.size(), last.aEnd + context);
+        int originalCount = to - from;
+        int revisedCount = originalCount;
+        for (Edit e : hunk) {
+            revisedCount += (e.bEnd - e.bStart) - (e.aEnd - e.aStart);
+        }
+        out.write("\n@@ -" + Math.max(1, first.aStart + 1 - context) + "," + originalCount
+                + " +" + Math.max(1, first.bStart + 1 - context) + "," + revisedCount + " @@");
+        int line = from;
+        for (Edit e : hunk) {
+            for (; line < e.aStart; line++) {
+                writeLine(out, " ", original.get(line));
+            }
+            for (int i = e.aStart; i < e.aEnd; i++) {
+                writeLine(out, "-", original.get(i));
+            }
+            for (int i = e.bStart; i < e.bEnd; i++) {
+                writeLine(out, "+", revised.get(i));
+            }
+            line = e.aEnd;
+        }
+        for (; line < to; line++) {
+            writeLine(out, " ", original.get(line));
+        }
+    }
+
+    private static void writeLine(Writer out, String prefix, String line) throws IOException {
+        out.write('\n');
+        out.write(prefix);
+        out.write(line);
+    }
+
+}
@@ -0,0 +1,164 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import com.atlassian.theplugin.commons.crucible.api.UploadItem;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded hand-off of upload items from the stage that fetches them to the stage that uploads them. Producers
+ * block while the queue is full, so fetching runs only a few items ahead of uploading, and uploads start as soon
+ * as the first item is fetched. An optional filter, applied as items are taken, drops items not worth uploading.
+ */
+public class UploadQueue implements Change.ItemSink {
+
+    /**
+     * Decides whether a taken item is uploaded.
+     */
+    public interface Filter {
+        boolean accept(UploadItem item) throws IOException;
+    }
+
+    private static final Object END = new Object();
+    private static final long POLL = 100;
+
+    private final BlockingQueue<Object> queue;
+    private final int sizeHint;
+    private volatile Filter filter;
+    private volatile boolean cancelled;
+    private volatile IOException failure;
+    private final AtomicInteger taken = new AtomicInteger();
+    private final AtomicInteger accepted = new AtomicInteger();
+
+    public UploadQueue(int capacity) {
+        this(capacity, 0);
+    }
+
+    private UploadQueue(int capacity, int sizeHint) {
+        this.queue = new ArrayBlockingQueue<Object>(Math.max(1, capacity) + 1);  // room for the end marker
+        this.sizeHint = sizeHint;
+    }
+
+    /**
+     * Returns a closed queue holding the given items.
+     */
+    public static UploadQueue of(Collection<UploadItem> items) {
+        UploadQueue queue = new UploadQueue(items.size(), items.size());
+        queue.queue.addAll(items);
+        queue.queue.add(END);
+        return queue;
+    }
+
+    /**
+     * Returns the number of items known to be coming, or 0 if unknown.
+     */
+    public int sizeHint() {
+        return sizeHint;
+    }
+
+    public void setFilter(Filter filter) {
+        this.filter = filter;
+    }
+
+    public void put(UploadItem item) throws IOException {
+        offer(item);
+    }
+
+    /**
+     * Marks the end of the items.
+     */
+    public void close() throws IOException {
+        offer(END);
+    }
+
+    /**
+     * Ends the items with a producer failure, which is rethrown to the consumers.
+     */
+    public void fail(IOException e) {
+        failure = e;
+        try {
+            offer(END);
+        } catch (IOException ignored) {
+            // cancelled, nobody is waiting
+        }
+    }
+
+    /**
+     * Gives up on the remaining items, releasing blocked producers and consumers.
+     */
+    public void cancel() {
+        cancelled = true;
+        queue.clear();
+        queue.offer(END);
+    }
+
+    private void offer(Object next) throws IOException {
+        try {
+            while (!queue.offer(next, POLL, TimeUnit.MILLISECONDS)) {
+                if (cancelled) {
+                    throw new IOException("Upload cancelled");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while queueing upload", e);
+        }
+    }
+
+    /**
+     * Takes the next item that passes the filter, waiting for it as needed. Returns null at the end of the items
+     * or once cancelled, and rethrows a producer failure.
+     */
+    public UploadItem take() throws IOException, InterruptedException {
+        while (true) {
+            Object next = queue.take();
+            if (next == END || cancelled) {
+                queue.offer(END);  // let the other consumers see the end too
+                if (failure != null && !cancelled) {
+                    throw failure;
+                }
+                return null;
+            }
+            UploadItem item = (UploadItem) next;
+            taken.incrementAndGet();
+            Filter f = filter;
+            if (f == null || f.accept(item)) {
+                accepted.incrementAndGet();
+                return item;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of items taken so far, before filtering.
+     */
+    public int taken() {
+        return taken.get();
+    }
+
+    /**
+     * Returns the number of items taken so far that passed the filter.
+     */
+    public int accepted() {
+        return accepted.get();
+    }
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import org.apache.commons.httpclient.methods.RequestEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Transport on the JDK's HttpURLConnection, which keeps connections alive in its own pool. Large bodies are
+ * streamed rather than buffered.
+ */
+class UrlConnectionTransport implements HttpTransport {
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    UrlConnectionTransport(int maxConnectionsPerHost) {
+        // Idle connections kept alive per host by the JDK
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", Integer.toString(maxConnectionsPerHost));
+    }
+
+    public Response get(String url, Map<String, String> headers, int timeout) throws IOException {
+        HttpURLConnection conn = open(url, "GET", headers, timeout);
+        return respond(conn);
+    }
+
+    public Response post(String url, Map<String, String> headers, RequestEntity entity, int timeout)
+            throws IOException {
+        HttpURLConnection conn = open(url, "POST", headers, timeout);
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", entity.getContentType());
+        long length = entity.getContentLength();
+        if (length >= 0 && length <= Integer.MAX_VALUE) {
+            conn.setFixedLengthStreamingMode((int) length);
+        } else {
+            conn.setChunkedStreamingMode(CHUNK_SIZE);
+        }
+        try {
+            OutputStream out = conn.getOutputStream();
+            entity.writeRequest(out);
+            out.close();
+        } catch (IOException e) {
+            conn.disconnect();
+            throw new NotSentException(e.getMessage(), e);  // not connected, or the body was cut short
+        }
+        return respond(conn);
+    }
+
+    private static HttpURLConnection open(String url, String method, Map<String, String> headers, int timeout)
+            throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod(method);
+        conn.setConnectTimeout(ClientFactory.getConnectionTimeout());
+        conn.setReadTimeout(timeout);
+        conn.setUseCaches(false);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            conn.setRequestProperty(header.getKey(), header.getValue());
+        }
+        return conn;
+    }
+
+    private static Response respond(final HttpURLConnection conn) throws IOException {
+        final int status;
+        try {
+            status = conn.getResponseCode();
+        } catch (IOException e) {
+            conn.disconnect();
+            throw e;
+        }
+        return new Response() {
+            private InputStream body;
+
+            public int getStatus() { return status; }
+
+            public String getHeader(String name) { return conn.getHeaderField(name); }
+
+            public InputStream getBody() throws IOException {
+                if (body == null) {
+                    body = status >= 400 ? conn.getErrorStream() : conn.getInputStream();
+                }
+                return body;
+            }
+
+            public void close(boolean keepAlive) {
+                if (keepAlive) {
+                    try {
+                        // The JDK only reuses a connection whose body was fully read and closed
+                        InputStream in = getBody();
+                        if (in != null) {
+                            in.close();
+                        }
+                    } catch (IOException e) {
+                        conn.disconnect();
+                    }
+                } else {
+                    conn.disconnect();
+                }
+            }
+        };
+    }
+}
@@ -15,13 +15,17 @@
  */
 package com.netflix.postreview.git;
 
-import com.atlassian.theplugin.commons.crucible.api.UploadItem;
 import com.atlassian.theplugin.commons.crucible.api.model.BasicReview;
 import com.netflix.postreview.Change;
+import com.netflix.postreview.ContentSource;
+import com.netflix.postreview.Fetcher;
+import com.netflix.postreview.Runner;
+import com.netflix.postreview.SourceUploadItem;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 /**
@@ -30,12 +34,14 @@ import java.util.List;
 public class GitChange implements Change {
 
     private final GitRunner git;
+    private final Fetcher fetcher;
     private final String startChangeId;
     private final String endChangeId;
     private final GitMetadata metadata;
 
-    public GitChange(GitRunner git, String startChangeId, String endChangeId) throws IOException {
+    public GitChange(GitRunner git, Fetcher fetcher, String startChangeId, String endChangeId) throws IOException {
         this.git = git;
+        this.fetcher = fetcher;
         this.startChangeId = startChangeId != null ? startChangeId : "HEAD^";
         this.endChangeId = endChangeId != null ? endChangeId : "HEAD";
         metadata = GitMetadata.from(git, this.startChangeId, this.endChangeId);
@@ -53,22 +59,100 @@ public class GitChange implements Change {
         return metadata.comment;
     }
 
-    public List<UploadItem> makeUploadItems(BasicReview review) throws IOException {
+    public void makeUploadItems(BasicReview review, ItemSink sink) throws IOException {
+        try {
+            fetcher.fetchAll(uploadTasks(sink));
+        } finally {
+            git.close();
+        }
+    }
+
+    /**
+     * Returns a fetch task per changed file that hands its upload item to the sink, so that it need not be held
+     * until the whole change is fetched.
+     */
+    private List<Fetcher.Task<Void>> uploadTasks(final ItemSink sink) throws IOException {
         List<String> files = git.execAndReadLines(new String[] {git.gitPath, "diff", "--name-only", startChangeId, endChangeId});
-        List<UploadItem> items = new ArrayList<UploadItem>(files.size());
+
+        // Resolve and size both sides of every file in one batch-check so the biggest pairs are fetched first
+        List<String> names = new ArrayList<String>(files.size() * 2);
         for (String path : files) {
-            items.add(new UploadItem(path, getBytes(startChangeId, path), getBytes(endChangeId, path))); //startChange
+            names.add(objectName(startChangeId, path));
+            names.add(objectName(endChangeId, path));
+        }
+        List<GitObjectReader.ObjectInfo> infos = git.objectInfo(names);
+
+        List<Fetcher.Task<Void>> tasks = new ArrayList<Fetcher.Task<Void>>(files.size());
+        for (int i = 0; i < files.size(); i++) {
+            final String path = files.get(i);
+            final GitObjectReader.ObjectInfo oldInfo = infos.get(2 * i);
+            final GitObjectReader.ObjectInfo newInfo = infos.get(2 * i + 1);
+            tasks.add(new Fetcher.Task<Void>(Math.max(0, oldInfo.size) + Math.max(0, newInfo.size)) {
+                public Void call() throws IOException {
+                    sink.put(new SourceUploadItem(path, getSource(oldInfo), getSource(newInfo))); //startChange
+                    return null;
+                }
+            });
         }
-        //return ImmutableList.copyOf(items);
-        return Collections.unmodifiableList(items);
+        return tasks;
     }
 
-    public String makePatch(BasicReview review) throws IOException {
-        return null; // Hrm. Can we do this?
+    // Context lines around each change, enough to take in the whole of any file Crucible could show. Not
+    // Integer.MAX_VALUE, as git's diff adds twice the context to line numbers and that would overflow.
+    private static final int CONTEXT = 100000000;
+
+    /**
+     * Writes the change as a single git diff of the start and end commits, streamed from one git process straight
+     * into the output. Renames are detected, and binary files come out as "Binary files differ" lines rather than
+     * binary patches, which Crucible could not show anyway. The diff keeps git's own headers, which Crucible
+     * reads, with the a/ and b/ prefixes set whatever the user's diff settings, and the file content bytes as they
+     * are in the repository.
+     */
+    public void makePatch(BasicReview review, OutputStream out) throws IOException {
+        String[] command = new String[] {git.gitPath, "diff", "--no-color", "--no-ext-diff", "--no-textconv",
+                "--src-prefix=a/", "--dst-prefix=b/", "--find-renames", "--unified=" + CONTEXT, startChangeId,
+                endChangeId};
+        Process process = git.start(command, false);
+        Runner.drain(process.getErrorStream());
+        try {
+            InputStream in = process.getInputStream();
+            byte[] buf = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                out.write(buf, 0, n);
+            }
+            out.flush();
+            int exitValue = process.waitFor();
+            if (exitValue != 0) {
+                throw new IOException("git diff failed with exit code " + exitValue);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted running: " + command[0], e);
+        } finally {
+            Runner.close(process);
+        }
+    }
+
+    /**
+     * Returns the content of a blob by its id. Blobs are streamed from the content cache when possible, and
+     * freshly read blobs are added to it so they need not stay on the heap. Missing objects have empty content.
+     */
+    private ContentSource getSource(GitObjectReader.ObjectInfo info) throws IOException {
+        if (info.sha == null) {
+            return ContentSource.of(new byte[0]);
+        }
+        ContentSource cached = git.cachedSource(info.sha);
+        if (cached != null) {
+            return cached;
+        }
+        byte[] bytes = git.objectReader().read(info.sha);
+        git.cacheContent(info.sha, bytes);
+        cached = git.cachedSource(info.sha);
+        return cached != null ? cached : ContentSource.of(bytes);
     }
 
-    private byte[] getBytes(String change, String path) throws IOException {
-        return git.execAndReadBytes(new String[] {git.gitPath, "show", change + ":" + path});
+    private static String objectName(String change, String path) {
+        return change + ":" + path;
     }
 
 }
@@ -0,0 +1,229 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview.git;
+
+import com.netflix.postreview.Runner;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A long-lived 'git cat-file --batch' process that reads object contents by name (e.g. "rev:path") from a single
+ * git process instead of spawning 'git show' per object. Requests can be pipelined: they are written on a
+ * separate thread while the length-prefixed responses are read back in order. A reader created in check mode
+ * runs 'git cat-file --batch-check' instead and only reports object ids and sizes.
+ */
+public class GitObjectReader {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final boolean checkOnly;
+    private final Process process;
+    private final OutputStream requests;
+    private final DataInputStream responses;
+    private volatile boolean closed;
+
+    /**
+     * The id and size of a named object, as reported by batch-check. Missing objects have a null sha.
+     */
+    public static class ObjectInfo {
+        public final String sha;
+        public final long size;
+
+        ObjectInfo(String sha, long size) {
+            this.sha = sha;
+            this.size = size;
+        }
+    }
+
+    GitObjectReader(GitRunner git, boolean checkOnly) throws IOException {
+        this.checkOnly = checkOnly;
+        process = git.start(new String[] {git.gitPath, "cat-file", checkOnly ? "--batch-check" : "--batch"}, false);
+        requests = new BufferedOutputStream(process.getOutputStream());
+        responses = new DataInputStream(new BufferedInputStream(process.getInputStream(), 64 * 1024));
+        Runner.drain(process.getErrorStream());
+    }
+
+    /**
+     * Returns the contents of a single named object, or an empty array if the object does not exist.
+     */
+    public synchronized byte[] read(String name) throws IOException {
+        try {
+            writeRequest(name);
+            requests.flush();
+            return readResponse(name);
+        } catch (IOException e) {
+            close();  // the responses may be out of step with the requests now
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the contents of all named objects in order, pipelining the requests so git never waits on a
+     * round trip. Missing objects come back as empty arrays.
+     */
+    public synchronized List<byte[]> readAll(List<String> names) throws IOException {
+        List<byte[]> contents = new ArrayList<byte[]>(names.size());
+        Writer writer = new Writer(names);
+        try {
+            for (String name : names) {
+                contents.add(readResponse(name));
+            }
+        } catch (IOException e) {
+            close();  // unblocks the writer if it is stuck on a full pipe
+            throw e;
+        }
+        writer.finish();
+        return contents;
+    }
+
+    /**
+     * Returns the ids and sizes of all named objects in order. Only valid for a reader created in check mode.
+     */
+    public synchronized List<ObjectInfo> readInfo(List<String> names) throws IOException {
+        if (!checkOnly) throw new IllegalStateException("Not a batch-check reader");
+        List<ObjectInfo> infos = new ArrayList<ObjectInfo>(names.size());
+        Writer writer = new Writer(names);
+        try {
+            for (String name : names) {
+                String header = readHeader();
+                long size = readSize(name, header);
+                infos.add(new ObjectInfo(size < 0 ? null : header.substring(0, header.indexOf(' ')), size));
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        writer.finish();
+        return infos;
+    }
+
+    /**
+     * Writes a list of requests on its own thread while the caller reads the responses.
+     */
+    private class Writer extends Thread {
+        private final List<String> names;
+        private IOException error;
+
+        Writer(List<String> names) {
+            super("git cat-file requests");
+            this.names = names;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                for (String name : names) {
+                    writeRequest(name);
+                }
+                requests.flush();
+            } catch (IOException e) {
+                error = e;
+            }
+        }
+
+        void finish() throws IOException {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                close();
+                throw new IOException("Interrupted reading git objects", e);
+            }
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+
+    private void writeRequest(String name) throws IOException {
+        if (name.indexOf('\n') >= 0) {
+            throw new IOException("Unsupported object name: " + name);
+        }
+        requests.write((name + "\n").getBytes("UTF-8"));
+    }
+
+    /**
+     * Parses one response: either "<sha> <type> <size>\n<contents>\n" or "<name> missing\n".
+     */
+    private byte[] readResponse(String name) throws IOException {
+        long size = readSize(name, readHeader());
+        if (size < 0 || checkOnly) {
+            return EMPTY;
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Object too large: " + name);
+        }
+        byte[] contents = new byte[(int) size];
+        responses.readFully(contents);
+        if (responses.read() != '\n') {
+            throw new IOException("Malformed git cat-file response for " + name);
+        }
+        return contents;
+    }
+
+    /**
+     * Parses the size from a response header of "<sha> <type> <size>", returning -1 for "<name> missing".
+     */
+    private static long readSize(String name, String header) throws IOException {
+        if (header.endsWith(" missing") || header.endsWith(" ambiguous")) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(header.substring(header.lastIndexOf(' ') + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Unexpected git cat-file response for " + name + ": " + header);
+        }
+    }
+
+    private String readHeader() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream(80);
+        int ch;
+        while ((ch = responses.read()) != '\n') {
+            if (ch == -1) throw new EOFException("git cat-file exited unexpectedly");
+            line.write(ch);
+        }
+        return line.toString("UTF-8");
+    }
+
+    /**
+     * Returns true once the reader has been closed, either by its owner or after a failed read.
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Ends the batch by closing git's stdin, letting it exit, then releases the process.
+     */
+    public void close() {
+        closed = true;
+        try {
+            requests.close();
+        } catch (IOException e) { }
+        try {
+            responses.close();
+        } catch (IOException e) { }
+        process.destroy();
+    }
+
+}
@@ -18,6 +18,11 @@ package com.netflix.postreview.git;
 import com.netflix.postreview.Runner;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Variant of Runner tailored for invoking git
@@ -34,4 +39,51 @@ public class GitRunner extends Runner {
         workingDir = dir;
     }
 
+    private final Map<Thread, GitObjectReader> objectReaders = new HashMap<Thread, GitObjectReader>();
+
+    /**
+     * Returns the object reader for the calling thread, starting its git process on first use. Each fetch
+     * worker gets its own cat-file process so that reads on different threads proceed in parallel. A reader
+     * closed by a failed read is replaced with a new one.
+     */
+    public synchronized GitObjectReader objectReader() throws IOException {
+        Thread thread = Thread.currentThread();
+        GitObjectReader reader = objectReaders.get(thread);
+        if (reader == null || reader.isClosed()) {
+            reader = new GitObjectReader(this, false);
+            objectReaders.put(thread, reader);
+        }
+        return reader;
+    }
+
+    /**
+     * Returns the ids and sizes of the named objects using a single short-lived 'git cat-file --batch-check'.
+     */
+    public List<GitObjectReader.ObjectInfo> objectInfo(List<String> names) throws IOException {
+        if (names.isEmpty()) return new ArrayList<GitObjectReader.ObjectInfo>();
+        GitObjectReader checker = new GitObjectReader(this, true);
+        try {
+            return checker.readInfo(names);
+        } finally {
+            checker.close();
+        }
+    }
+
+    /**
+     * Shuts down all object readers that were started. A later objectReader() call starts a new one.
+     */
+    public synchronized void close() {
+        for (GitObjectReader reader : objectReaders.values()) {
+            reader.close();
+        }
+        objectReaders.clear();
+    }
+
+    /**
+     * Blob SHAs are content hashes, so they are unique across repositories.
+     */
+    @Override protected String cacheNamespace() {
+        return "git";
+    }
+
 }
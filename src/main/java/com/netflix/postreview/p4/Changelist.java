@@ -18,12 +18,12 @@ package com.netflix.postreview.p4;
 import com.netflix.postreview.Runner;
 
 import java.io.IOException;
+import java.util.AbstractList;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
-import java.util.Map;
 import java.util.logging.Logger;
 
 /**
@@ -42,7 +42,7 @@ public class Changelist extends P4Command {
     public final List<JobEntry> jobs;
 
     public static Changelist invokeWith(Runner runner, String cl) throws IOException {
-        return fromZtag(runner.execAndReadString(commandFor(cl)));
+        return fromRecord(record(runner, commandFor(cl)));
     }
 
     @Override public String toString() {
@@ -197,42 +197,65 @@ public class Changelist extends P4Command {
         this.jobs = Collections.unmodifiableList(jobs);
     }
 
+    /**
+     * Describes the change without diffs, which for a submitted change would otherwise come back with the tags
+     * and be held in full while the record is read.
+     */
     private static String[] commandFor(String cl) {
-        return new String[] { "p4", "-ztag", "describe", cl };
+        return new String[] { "describe", "-s", cl };
     }
 
-    private static Changelist fromZtag(String ztag) {
-        Map<String, String> zmap = ztagMap(ztag);
-        if (zmap.size() == 0) {
-            return null;
+    /**
+     * The files of a described change, made from the record's indexed tags as they are first used rather than
+     * all up front.
+     */
+    private static class FileEntries extends AbstractList<FileEntry> {
+        private final P4Record rec;
+        private final FileEntry[] entries;
+
+        FileEntries(P4Record rec) {
+            this.rec = rec;
+            int count = 0;
+            while (count < rec.count("depotFile") && rec.get("depotFile", count) != null) count++;
+            entries = new FileEntry[count];
         }
 
-        String cl = zmap.get("change");
-        String user = zmap.get("user");
-        String client = zmap.get("client");
-        String time = zmap.get("time");
-        String desc = zmap.get("desc");
-        String status = zmap.get("status");
+        @Override public synchronized FileEntry get(int i) {
+            if (entries[i] == null) {
+                entries[i] = new FileEntry(rec.get("depotFile", i), rec.get("rev", i), rec.get("action", i), rec.get("type", i));
+            }
+            return entries[i];
+        }
 
-        List<FileEntry> files = new ArrayList<FileEntry>();
-        for (int i = 0; ; i++) {
-            String depotFile = zmap.get("depotFile" + i);
-            if (depotFile == null) break;
-            String rev = zmap.get("rev" + i);
-            String action = zmap.get("action" + i);
-            String type = zmap.get("type" + i);
-            files.add(new FileEntry(depotFile, rev, action, type));
+        @Override public int size() {
+            return entries.length;
         }
+    }
+
+    private static Changelist fromRecord(P4Record rec) {
+        if (rec == null) {
+            return null;
+        }
+
+        String cl = rec.get("change");
+        String user = rec.get("user");
+        String client = rec.get("client");
+        String time = rec.get("time");
+        String desc = rec.get("desc");
+        String status = rec.get("status");
+
+        List<FileEntry> files = new FileEntries(rec);
 
         // TODO: verify these fields if we really ever care about jobs
-        List<JobEntry> jobs = new ArrayList<JobEntry>();
-        for (int i = 0; ; i++) {
-            String job = zmap.get("Job" + i);
+        int jobCount = rec.count("Job");
+        List<JobEntry> jobs = new ArrayList<JobEntry>(jobCount);
+        for (int i = 0; i < jobCount; i++) {
+            String job = rec.get("Job", i);
             if (job == null) break;
-            String js = zmap.get("Status" + i);
+            String js = rec.get("Status", i);
             //String ju = zm.get("User" + i);
             //String jdate = zm.get("Date" + i);
-            String jd = zmap.get("Description" + i);
+            String jd = rec.get("Description", i);
             jobs.add(new JobEntry(job, js, jd));
         }
 
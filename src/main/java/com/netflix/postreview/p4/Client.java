@@ -18,7 +18,6 @@ package com.netflix.postreview.p4;
 import com.netflix.postreview.Runner;
 
 import java.io.IOException;
-import java.util.Map;
 
 /**
  * Representation of basic p4 client info, retrieved using the 'p4 clients -e' command.
@@ -32,7 +31,7 @@ public class Client extends P4Command {
     public final String host;
 
     public static Client invokeWith(Runner runner, String name) throws IOException {
-        return fromZtag(runner.execAndReadString(commandFor(name)));
+        return fromRecord(record(runner, commandFor(name)));
     }
 
     @Override public String toString() {
@@ -47,15 +46,14 @@ public class Client extends P4Command {
     }
 
     private static String[] commandFor(String name) {
-        return new String[] { "p4", "-ztag", "clients", "-e", name };
+        return new String[] { "clients", "-e", name };
     }
 
-    private static Client fromZtag(String ztag) {
-        Map<String, String> zmap = ztagMap(ztag);
-        if (zmap.size() == 0) {
+    private static Client fromRecord(P4Record rec) {
+        if (rec == null) {
             return null;
         }
-        return new Client(zmap.get("client"), zmap.get("Owner"), zmap.get("Root"), zmap.get("Host"));
+        return new Client(rec.get("client"), rec.get("Owner"), rec.get("Root"), rec.get("Host"));
     }
 
 }
@@ -17,14 +17,20 @@ package com.netflix.postreview.p4;
 
 import com.netflix.postreview.Runner;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Simple wrapper for getting the contents of a depot file using "p4 print".
  */
 public class DepotFile {
 
+    private static final int MAX_FILES_PER_COMMAND = 200;
+
     public static byte[] readBytes(Runner r, String path, int rev) throws IOException {
         return r.execAndReadBytes(getPrintCmd(path, rev));
     }
@@ -37,8 +43,90 @@ public class DepotFile {
         return r.execAndReadLines(getPrintCmd(path, rev));
     }
 
+    /**
+     * Reads the contents of many depot file revisions with as few p4 invocations as the command line allows.
+     * The combined output is requested in marshalled (-G) form so that each file's stat header and content
+     * chunks can be split apart exactly. Revisions already in the runner's content cache are not printed.
+     * Returns the contents keyed by fileRev(path, rev).
+     */
+    public static Map<String, byte[]> readAllBytes(Runner r, List<String> fileRevs) throws IOException {
+        Map<String, byte[]> contents = new HashMap<String, byte[]>();
+        List<String> uncached = new ArrayList<String>();
+        for (String fileRev : fileRevs) {
+            byte[] cached = r.cachedContent(fileRev);
+            if (cached != null) {
+                contents.put(fileRev, cached);
+            } else {
+                uncached.add(fileRev);
+            }
+        }
+        for (int i = 0; i < uncached.size(); i += MAX_FILES_PER_COMMAND) {
+            List<String> batch = uncached.subList(i, Math.min(uncached.size(), i + MAX_FILES_PER_COMMAND));
+            Map<String, byte[]> printed = new HashMap<String, byte[]>();
+            Process process = r.start(getPrintCmd(batch), false);
+            Runner.drain(process.getErrorStream());
+            try {
+                readPrintRecords(new P4Marshal(process.getInputStream()), printed);
+            } finally {
+                Runner.close(process);
+            }
+            for (Map.Entry<String, byte[]> entry : printed.entrySet()) {
+                r.cacheContent(entry.getKey(), entry.getValue());
+            }
+            contents.putAll(printed);
+        }
+        for (String fileRev : fileRevs) {
+            if (!contents.containsKey(fileRev)) throw new IOException("No p4 print output for: " + fileRev);
+        }
+        return contents;
+    }
+
+    public static String fileRev(String path, int rev) {
+        return path + "#" + rev;
+    }
+
+    /**
+     * Demultiplexes 'p4 -G print' output: a "stat" record names each file, followed by zero or more content
+     * records carrying its data.
+     */
+    private static void readPrintRecords(P4Marshal marshal, Map<String, byte[]> contents) throws IOException {
+        String current = null;
+        ByteArrayOutputStream content = null;
+        Map<String, Object> record;
+        while ((record = marshal.readRecord()) != null) {
+            String code = P4Marshal.string(record, "code");
+            if ("stat".equals(code)) {
+                if (current != null) contents.put(current, content.toByteArray());
+                current = fileRev(P4Marshal.string(record, "depotFile"), parseRev(P4Marshal.string(record, "rev")));
+                content = new ByteArrayOutputStream(sizeHint(P4Marshal.string(record, "fileSize")));
+            } else if ("error".equals(code)) {
+                throw new IOException("p4 print: " + P4Marshal.string(record, "data"));
+            } else if (current != null && record.containsKey("data")) {
+                content.write(P4Marshal.bytes(record, "data"));
+            }
+        }
+        if (current != null) contents.put(current, content.toByteArray());
+    }
+
+    private static int parseRev(String rev) {
+        try { return Integer.parseInt(rev); } catch (NumberFormatException e) { return 0; }
+    }
+
+    private static int sizeHint(String fileSize) {
+        try { return Math.max(32, (int) Math.min(Integer.MAX_VALUE - 8, Long.parseLong(fileSize))); }
+        catch (NumberFormatException e) { return 8192; }
+    }
+
     private static String[] getPrintCmd(String filename, int rev) {
-        String fileRev = filename + "#" + rev;
-        return new String[] {"p4", "print", "-q", fileRev};
+        return new String[] {"p4", "print", "-q", fileRev(filename, rev)};
+    }
+
+    private static String[] getPrintCmd(List<String> fileRevs) {
+        List<String> command = new ArrayList<String>(fileRevs.size() + 3);
+        command.add("p4");
+        command.add("-G");
+        command.add("print");
+        command.addAll(fileRevs);
+        return command.toArray(new String[command.size()]);
     }
 }
@@ -18,7 +18,10 @@ package com.netflix.postreview.p4;
 import com.netflix.postreview.Runner;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -38,7 +41,25 @@ public class Fstat extends P4Command {
     public final Changelist.FileType type;
 
     public static Fstat invokeWith(Runner runner, String path) throws IOException {
-        return fromZtag(runner.execAndReadString(commandFor(path)));
+        return fromRecord(record(runner, commandFor(path)));
+    }
+
+    private static final int MAX_PATHS_PER_COMMAND = 200;
+
+    /**
+     * Runs fstat for many depot paths with as few p4 invocations as the command line allows, returning the
+     * results keyed by depot path.
+     */
+    public static Map<String, Fstat> invokeWithAll(Runner runner, List<String> paths) throws IOException {
+        Map<String, Fstat> fstats = new HashMap<String, Fstat>();
+        for (int i = 0; i < paths.size(); i += MAX_PATHS_PER_COMMAND) {
+            List<String> batch = paths.subList(i, Math.min(paths.size(), i + MAX_PATHS_PER_COMMAND));
+            for (P4Record rec : records(runner, commandFor(batch))) {
+                Fstat fs = fromRecord(rec);
+                fstats.put(fs.depotPath, fs);
+            }
+        }
+        return fstats;
     }
 
     @Override public String toString() {
@@ -62,20 +83,26 @@ public class Fstat extends P4Command {
     }
 
     private static String[] commandFor(String path) {
-        return new String[] { "p4", "-ztag", "fstat", path };
+        return new String[] { "fstat", path };
+    }
+
+    private static String[] commandFor(List<String> paths) {
+        List<String> command = new ArrayList<String>(paths.size() + 1);
+        command.add("fstat");
+        command.addAll(paths);
+        return command.toArray(new String[command.size()]);
     }
 
-    private static Fstat fromZtag(String ztag) {
-        Map<String, String> zmap = ztagMap(ztag);
-        if (zmap.size() == 0) {
+    private static Fstat fromRecord(P4Record rec) {
+        if (rec == null) {
             return null;
         }
-        String action = zmap.containsKey("action") ? zmap.get("action") : zmap.get("headAction");
-        String type = zmap.containsKey("type") ? zmap.get("type") : zmap.get("headType");
-        String change = zmap.containsKey("headChange") ? zmap.get("headChange") : zmap.get("change");
+        String action = rec.containsKey("action") ? rec.get("action") : rec.get("headAction");
+        String type = rec.containsKey("type") ? rec.get("type") : rec.get("headType");
+        String change = rec.containsKey("headChange") ? rec.get("headChange") : rec.get("change");
         //"haveRev"
-        String time = zmap.containsKey("headTime") ? zmap.get("headTime") : "0";
-        return new Fstat(zmap.get("depotFile"), zmap.get("clientFile"), action, change, time, type);
+        String time = rec.containsKey("headTime") ? rec.get("headTime") : "0";
+        return new Fstat(rec.get("depotFile"), rec.get("clientFile"), action, change, time, type);
     }
 
 }
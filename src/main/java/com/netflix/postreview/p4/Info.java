@@ -18,7 +18,6 @@ package com.netflix.postreview.p4;
 import com.netflix.postreview.Runner;
 
 import java.io.IOException;
-import java.util.Map;
 
 /**
  * Representation of the 'p4 info' command and its results.
@@ -30,7 +29,7 @@ public class Info extends P4Command {
     public final String clientRoot;
 
     public static Info invokeWith(Runner runner) throws IOException {
-        return fromZtag(runner.execAndReadString(command()));
+        return fromRecord(record(runner, command()));
     }
 
     @Override public String toString() {
@@ -43,12 +42,14 @@ public class Info extends P4Command {
     }
 
     private static String[] command() {
-        return new String[] { "p4", "-ztag", "info" };
+        return new String[] { "info" };
     }
 
-    private static Info fromZtag(String ztag) {
-        Map<String, String> zmap = ztagMap(ztag);
-        return new Info(zmap.get("clientName"), zmap.get("clientRoot"));
+    private static Info fromRecord(P4Record rec) {
+        if (rec == null) {
+            return new Info(null, null);
+        }
+        return new Info(rec.get("clientName"), rec.get("clientRoot"));
     }
 
 }
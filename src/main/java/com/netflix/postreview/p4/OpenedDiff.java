@@ -0,0 +1,254 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview.p4;
+
+import com.netflix.postreview.PatchWriter;
+import com.netflix.postreview.Runner;
+import com.netflix.postreview.SpillBuffer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Wrapper for 'p4 diff -du' of files opened in the client, which has the p4 client diff them against their depot
+ * base itself instead of printing the base for us to diff. The output is split into a patch section per file, with
+ * the p4 headers rewritten into the Index/---/+++ form that P4Change writes.
+ */
+public class OpenedDiff {
+
+    private static final int MAX_FILES_PER_COMMAND = 200;
+
+    // Context lines around each change, enough to take in the whole file as patch mode does
+    private static final int CONTEXT = 99999;
+
+    static final Pattern HUNK_PAT = Pattern.compile("@@ -\\d+(?:,(\\d+))? \\+\\d+(?:,(\\d+))? @@.*");
+
+    /**
+     * Diffs opened files, writing the patch section of each into a buffer of its own. Returns the buffers keyed by
+     * depot path. A file that p4 printed no complete diff for is missing, left for the caller to diff itself.
+     */
+    public static Map<String, SpillBuffer> readAll(Runner r, List<Fstat> fstats, int memoryLimit) throws IOException {
+        Map<String, Fstat> files = new HashMap<String, Fstat>();
+        List<String> paths = new ArrayList<String>(fstats.size());
+        for (Fstat fs : fstats) {
+            files.put(fs.depotPath, fs);
+            paths.add(fs.depotPath);
+        }
+        Map<String, SpillBuffer> sections = new HashMap<String, SpillBuffer>();
+        boolean complete = false;
+        try {
+            for (int i = 0; i < paths.size(); i += MAX_FILES_PER_COMMAND) {
+                List<String> batch = paths.subList(i, Math.min(paths.size(), i + MAX_FILES_PER_COMMAND));
+                Process process = r.start(getDiffCmd(batch), false);
+                Runner.drain(process.getErrorStream());
+                try {
+                    new Splitter(files, memoryLimit, sections).read(process.getInputStream());
+                } finally {
+                    Runner.close(process);
+                }
+            }
+            complete = true;
+            return sections;
+        } finally {
+            if (!complete) {
+                for (SpillBuffer section : sections.values()) section.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the depot path a p4 diff file header starts with, either "==== //depot/path#rev - local ====" or
+     * "--- //depot/path[#rev]<tab>date".
+     */
+    static String depotPathOf(String header) {
+        int end = header.indexOf('\t');
+        if (end >= 0) header = header.substring(0, end);
+        end = header.indexOf('#');
+        return end >= 0 ? header.substring(0, end) : header;
+    }
+
+    private static String[] getDiffCmd(List<String> paths) {
+        List<String> command = new ArrayList<String>(paths.size() + 3);
+        command.add("p4");
+        command.add("diff");
+        command.add("-du" + CONTEXT);
+        command.addAll(paths);
+        return command.toArray(new String[command.size()]);
+    }
+
+    /**
+     * Splits diff output into file sections. Hunk bodies are copied through as raw bytes, counted off against
+     * their hunk header so that content lines are never mistaken for headers, and a file whose hunks come out
+     * short is dropped.
+     */
+    private static class Splitter {
+        private final Map<String, Fstat> files;
+        private final int memoryLimit;
+        private final Map<String, SpillBuffer> sections;
+
+        private final byte[] buffer = new byte[64 * 1024];
+        private int position;
+        private int limit;
+        private byte[] line = new byte[256];
+        private int length;
+
+        private Fstat file;
+        private SpillBuffer section;
+        private boolean hunks;
+        private int originalLeft;
+        private int revisedLeft;
+
+        Splitter(Map<String, Fstat> files, int memoryLimit, Map<String, SpillBuffer> sections) {
+            this.files = files;
+            this.memoryLimit = memoryLimit;
+            this.sections = sections;
+        }
+
+        void read(InputStream in) throws IOException {
+            while (readLine(in)) {
+                accept();
+            }
+            end();
+        }
+
+        /**
+         * Reads the next line without its \n or \r\n terminator, returning false at the end of the output.
+         */
+        private boolean readLine(InputStream in) throws IOException {
+            length = 0;
+            while (true) {
+                if (position == limit) {
+                    limit = in.read(buffer);
+                    position = 0;
+                    if (limit <= 0) {
+                        limit = 0;
+                        if (length == 0) return false;
+                        break;
+                    }
+                }
+                int start = position;
+                while (position < limit && buffer[position] != '\n') position++;
+                append(start, position);
+                if (position < limit) {
+                    position++;
+                    break;
+                }
+            }
+            if (length > 0 && line[length - 1] == '\r') length--;
+            return true;
+        }
+
+        private void append(int from, int to) {
+            if (length + to - from > line.length) {
+                byte[] grown = new byte[Math.max(line.length * 2, length + to - from)];
+                System.arraycopy(line, 0, grown, 0, length);
+                line = grown;
+            }
+            System.arraycopy(buffer, from, line, length, to - from);
+            length += to - from;
+        }
+
+        private void accept() throws IOException {
+            if (section != null && (originalLeft > 0 || revisedLeft > 0)) {
+                byte kind = length > 0 ? line[0] : (byte) ' ';
+                if (kind == ' ' && originalLeft > 0 && revisedLeft > 0) {
+                    originalLeft--;
+                    revisedLeft--;
+                } else if (kind == '-' && originalLeft > 0) {
+                    originalLeft--;
+                } else if (kind == '+' && revisedLeft > 0) {
+                    revisedLeft--;
+                } else if (kind != '\\') {
+                    drop();  // hunk cut short, fall through to read the line as a header
+                }
+                if (section != null) {
+                    if (kind != '\\') {
+                        section.write('\n');
+                        if (length == 0) {
+                            section.write(' ');  // context line whose leading space was trimmed
+                        } else {
+                            section.write(line, 0, length);
+                        }
+                    }
+                    return;
+                }
+            }
+
+            String text = new String(line, 0, length, PatchWriter.CHARSET);
+            if (text.startsWith("==== ")) {
+                start(depotPathOf(text.substring(5)));
+            } else if (text.startsWith("--- ")) {
+                String path = depotPathOf(text.substring(4));
+                if (file == null || hunks || !path.equals(file.depotPath)) start(path);
+            } else if (text.startsWith("@@ ") && section != null) {
+                Matcher m = HUNK_PAT.matcher(text);
+                if (!m.matches()) {
+                    drop();
+                    return;
+                }
+                originalLeft = m.group(1) != null ? Integer.parseInt(m.group(1)) : 1;
+                revisedLeft = m.group(2) != null ? Integer.parseInt(m.group(2)) : 1;
+                if (!hunks) {
+                    write("\n--- " + file.relativePath() + "\t" + file.change
+                            + "\n+++ " + file.relativePath() + "\t" + "\t(modified)");
+                    hunks = true;
+                }
+                write("\n" + text);
+            }
+            // anything else, such as +++ headers and "\ No newline at end of file", is left out as the in-JVM diff does
+        }
+
+        private void start(String depotPath) throws IOException {
+            end();
+            file = files.get(depotPath);
+            if (file != null && !sections.containsKey(depotPath)) {
+                section = new SpillBuffer(memoryLimit);
+                write("Index: " + file.relativePath() + "\n===================================================================");
+            }
+        }
+
+        private void end() {
+            if (originalLeft > 0 || revisedLeft > 0) {
+                drop();
+            } else if (section != null) {
+                sections.put(file.depotPath, section);
+            }
+            file = null;
+            section = null;
+            hunks = false;
+        }
+
+        private void drop() {
+            if (section != null) section.delete();
+            file = null;
+            section = null;
+            hunks = false;
+            originalLeft = 0;
+            revisedLeft = 0;
+        }
+
+        private void write(String text) throws IOException {
+            section.write(text.getBytes(PatchWriter.CHARSET));
+        }
+    }
+
+}
@@ -18,24 +18,44 @@ package com.netflix.postreview.p4;
 import com.atlassian.theplugin.commons.crucible.api.UploadItem;
 import com.atlassian.theplugin.commons.crucible.api.model.BasicReview;
 import com.netflix.postreview.Change;
+import com.netflix.postreview.ContentSource;
+import com.netflix.postreview.Fetcher;
+import com.netflix.postreview.PatchWriter;
 import com.netflix.postreview.Runner;
-import difflib.DiffUtils;
-import difflib.Patch;
-import org.apache.commons.lang.StringUtils;
+import com.netflix.postreview.SourceUploadItem;
+import com.netflix.postreview.SpillBuffer;
+import com.netflix.postreview.UnifiedDiff;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Represents a pending or submitted change in P4 to be reviewed in Crucible.
  */
 public class P4Change implements Change {
     P4Runner p4;
+    Fetcher fetcher;
     Changelist changelist;
 
-    public P4Change(P4Runner p4, String changeId) throws IOException {
+    /** When set, patch mode has the p4 client diff opened files rather than printing and diffing them here. */
+    final boolean openedDiff;
+
+    public P4Change(P4Runner p4, Fetcher fetcher, String changeId) throws IOException {
+        this(p4, fetcher, changeId, false);
+    }
+
+    public P4Change(P4Runner p4, Fetcher fetcher, String changeId, boolean openedDiff) throws IOException {
         this.p4 = p4;
+        this.fetcher = fetcher;
+        this.openedDiff = openedDiff;
         changelist = Changelist.invokeWith(p4, changeId);
         if (changelist == null) throw new IOException("Changelist not found: " + changeId);
     }
@@ -54,109 +74,334 @@ public class P4Change implements Change {
         return changelist.description;
     }
 
+    // Files per p4 print when streaming, small enough that the first items are ready early
+    private static final int STREAM_BATCH = 16;
+
+    /**
+     * Scans a given CL and hands Crucible UploadItem objects to the sink. Each of these is a pair of depot and
+     * local (original/revised) files, including full content. Items are handed over batch by batch as the depot
+     * bases are printed, and files with no depot base right away. Skipping files that are unchanged since a
+     * previous upload to the review is left to the caller, see ReviewManifest.
+     */
+    public void makeUploadItems(BasicReview review, final ItemSink sink) throws IOException {
+        final List<Fstat> fstats = fstatAll();
+        int depotCount = 0;
+        for (int i = 0; i < changelist.files.size(); i++) {
+            Changelist.FileEntry fe = changelist.files.get(i);
+            if (fe.action.hasDepotFile) {
+                depotCount++;
+            } else if (fe.action.hasLocalFile) {
+                System.out.println("    => " + fstats.get(i));
+                sink.put(uploadItem(null, fe, fstats.get(i)));
+            }
+        }
+
+        int batches = Math.max(fetcher.getWorkers(), (depotCount + STREAM_BATCH - 1) / STREAM_BATCH);
+        List<Fetcher.Task<Void>> tasks = new ArrayList<Fetcher.Task<Void>>();
+        for (final List<Integer> group : groupFiles(fstats, depotIndices(false, 0, fstats.size()), batches)) {
+            tasks.add(new Fetcher.Task<Void>(groupSize(fstats, group)) {
+                public Void call() throws IOException {
+                    Map<String, byte[]> depotFiles = DepotFile.readAllBytes(p4, fileRevs(fstats, group));
+                    for (int i : group) {
+                        System.out.println("    => " + fstats.get(i));
+                        sink.put(uploadItem(depotFiles, changelist.files.get(i), fstats.get(i)));
+                    }
+                    return null;
+                }
+            });
+        }
+        fetcher.fetchAll(tasks);
+    }
+
+    /**
+     * Returns the upload item pairing the depot base of a file with its local copy, either side empty if absent.
+     */
+    private UploadItem uploadItem(Map<String, byte[]> depotFiles, Changelist.FileEntry fe, Fstat fs) {
+        ContentSource depotSource = fe.action.hasDepotFile
+                ? depotSource(depotFiles, fe, fs)
+                : ContentSource.of(new byte[0]);
+        ContentSource localSource = fe.action.hasLocalFile
+                ? ContentSource.of(new File(fs.localPath))
+                : ContentSource.of(new byte[0]);
+        return new SourceUploadItem(fs.relativePath(), depotSource, localSource);
+    }
+
     /**
-     * Scans a given CL and returns a list of Crucible UploadItem objects. Each of these are a pair of
-     * depot and local (original/revised) files, including full content.
+     * Returns the depot base of a file for upload, streamed from the content cache when it is there so that
+     * the printed copy need not stay on the heap.
      */
-    public List<UploadItem> makeUploadItems(BasicReview review) throws IOException {
-        // Analyze each entry in the changelist to determine its location and
-        // action: ADD/EDIT/DELETE/MOVE_x, producing a crucible UploadItem for each.
-        List<UploadItem> items = new ArrayList<UploadItem>();
+    private ContentSource depotSource(Map<String, byte[]> depotFiles, Changelist.FileEntry fe, Fstat fs) {
+        String fileRev = DepotFile.fileRev(fs.depotPath, fe.rev);
+        ContentSource cached = p4.cachedSource(fileRev);
+        return cached != null ? cached : ContentSource.of(depotFiles.get(fileRev));
+    }
+
+    /**
+     * Runs fstat for every file in the changelist in one batch, returning the results in changelist order.
+     */
+    private List<Fstat> fstatAll() throws IOException {
+        List<String> paths = new ArrayList<String>(changelist.files.size());
         for (Changelist.FileEntry fe : changelist.files) {
-            Fstat fs = Fstat.invokeWith(p4, fe.depotFile);
-            System.out.println("    => " + fs);
-            if (fe.action.hasDepotFile || fe.action.hasLocalFile) {
-                if (true || review == null) {
-                    byte[] depotBytes = fe.action.hasDepotFile
-                            ? DepotFile.readBytes(p4, fs.depotPath, fe.rev)
-                            : new byte[0];
-                    byte[] localBytes = fe.action.hasLocalFile
-                            ? Runner.readFileBytes(fs.localPath)
-                            : new byte[0];
-                    items.add(new UploadItem(fs.relativePath(), depotBytes, localBytes));
-                } else {
-                    // TODO: This kinda works, but really need to know when local is really different from last file content
-                    /*
-                    Set<CrucibleFileInfo> cruFiles = review.getFiles();
-                    for (CrucibleFileInfo cfi : cruFiles) {
-                        //if (fs.depotPath.equals())
-                        System.out.println(" cfi:" + cfi);
-                    }*/
-                    // See : byte[] getFileContent(String contentUrl)
-                    byte[] localBytes = fe.action.hasLocalFile
-                            ? Runner.readFileBytes(fs.localPath)
-                            : new byte[0];
-                    items.add(new UploadItem(fs.relativePath(), null, localBytes));
+            paths.add(fe.depotFile);
+        }
+        Map<String, Fstat> fstatMap = Fstat.invokeWithAll(p4, paths);
+        List<Fstat> fstats = new ArrayList<Fstat>(paths.size());
+        for (String path : paths) {
+            Fstat fs = fstatMap.get(path);
+            if (fs == null) throw new IOException("No fstat result for: " + path);
+            fstats.add(fs);
+        }
+        return fstats;
+    }
+
+    /**
+     * Prints the depot base of the given changelist files. The files are split into one balanced group per fetch
+     * worker, largest first, and each group is printed by a single multi-file p4 print. Returns the contents keyed
+     * by DepotFile.fileRev().
+     */
+    private Map<String, byte[]> fetchDepotFiles(final List<Fstat> fstats, List<Integer> indices) throws IOException {
+        List<Fetcher.Task<Map<String, byte[]>>> tasks = new ArrayList<Fetcher.Task<Map<String, byte[]>>>();
+        for (List<Integer> group : groupFiles(fstats, indices, fetcher.getWorkers())) {
+            final List<String> fileRevs = fileRevs(fstats, group);
+            tasks.add(new Fetcher.Task<Map<String, byte[]>>(groupSize(fstats, group)) {
+                public Map<String, byte[]> call() throws IOException {
+                    return DepotFile.readAllBytes(p4, fileRevs);
                 }
+            });
+        }
+        Map<String, byte[]> depotFiles = new HashMap<String, byte[]>();
+        for (Map<String, byte[]> groupFiles : fetcher.fetchAll(tasks)) {
+            depotFiles.putAll(groupFiles);
+        }
+        return depotFiles;
+    }
+
+    /**
+     * Returns the indices of the changelist files from index from to to that have a depot base, optionally text
+     * files only.
+     */
+    private List<Integer> depotIndices(boolean textOnly, int from, int to) {
+        List<Integer> indices = new ArrayList<Integer>();
+        for (int i = from; i < to; i++) {
+            Changelist.FileEntry fe = changelist.files.get(i);
+            if (fe.action.hasDepotFile && (!textOnly || fe.type.isText)) indices.add(i);
+        }
+        return indices;
+    }
+
+    /**
+     * Splits changelist files into at most the given number of groups of about equal size, dealing the largest
+     * files out first. Takes and returns changelist indices.
+     */
+    private static List<List<Integer>> groupFiles(final List<Fstat> fstats, List<Integer> files, int maxGroups) {
+        List<Integer> indices = new ArrayList<Integer>(files);
+        Collections.sort(indices, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                long sa = localSize(fstats.get(a));
+                long sb = localSize(fstats.get(b));
+                return sa < sb ? 1 : (sa > sb ? -1 : 0);
+            }
+        });
+
+        int groupCount = Math.min(maxGroups, indices.size());
+        List<List<Integer>> groups = new ArrayList<List<Integer>>(groupCount);
+        long[] groupSizes = new long[groupCount];
+        for (int g = 0; g < groupCount; g++) groups.add(new ArrayList<Integer>());
+        for (int i : indices) {
+            int smallest = 0;
+            for (int g = 1; g < groupCount; g++) {
+                if (groupSizes[g] < groupSizes[smallest]) smallest = g;
             }
+            groups.get(smallest).add(i);
+            groupSizes[smallest] += localSize(fstats.get(i));
+        }
+        return groups;
+    }
+
+    private List<String> fileRevs(List<Fstat> fstats, List<Integer> group) {
+        List<String> fileRevs = new ArrayList<String>(group.size());
+        for (int i : group) {
+            fileRevs.add(DepotFile.fileRev(fstats.get(i).depotPath, changelist.files.get(i).rev));
+        }
+        return fileRevs;
+    }
+
+    private static long groupSize(List<Fstat> fstats, List<Integer> group) {
+        long size = 0;
+        for (int i : group) {
+            size += localSize(fstats.get(i));
         }
-        return items;
+        return size;
     }
 
     /**
-     * Scans a given CL and returns a single big udiff patch string that represents the delta from the original
-     * depot versions to the current local versions. The patch file is in a format digestible by Crucible.
+     * Estimates the fetch size of a file from its local copy, which for an open file is close to the depot size.
      */
-    public String makePatch(BasicReview review) throws IOException {
-        List<String> patchLines = new ArrayList<String>();
-        for (Changelist.FileEntry fe : changelist.files) {
-            Fstat fs = Fstat.invokeWith(p4, fe.depotFile);
-            if (!fe.type.isText) {
-                System.out.println("    => " + fs + " (SKIPPING)");
-                continue;
+    private static long localSize(Fstat fs) {
+        return fs.localPath != null ? new File(fs.localPath).length() : 0;
+    }
+
+    // Patch section bytes held in memory per file before the rest is spilled to a temporary file
+    private static final int SECTION_MEMORY = 1024 * 1024;
+
+    /**
+     * Scans a given CL and writes a single big udiff patch that represents the delta from the original depot
+     * versions to the current local versions. The patch file is in a format digestible by Crucible. Files are
+     * taken in changelist order a window at a time, so only one window of depot bases and diffs is held however
+     * big the change is. Within a window each file's section is diffed on a fetch worker, biggest first, and the
+     * sections are then written out in changelist order. Added and deleted files are copied into the patch without
+     * being decoded. With openedDiff set, edited files of a pending change are diffed by 'p4 diff' instead, see
+     * openedDiffs().
+     */
+    public void makePatch(BasicReview review, OutputStream out) throws IOException {
+        List<Fstat> fstats = fstatAll();
+        int window = STREAM_BATCH * fetcher.getWorkers();
+        boolean started = false;
+        for (int from = 0; from < fstats.size(); from += window) {
+            int to = Math.min(fstats.size(), from + window);
+            List<Integer> depotIndices = depotIndices(true, from, to);
+            Map<Integer, SpillBuffer> opened = openedDiffs(fstats, depotIndices);
+            List<SpillBuffer> sections = new ArrayList<SpillBuffer>(Collections.<SpillBuffer>nCopies(to - from, null));
+            for (Map.Entry<Integer, SpillBuffer> section : opened.entrySet()) {
+                sections.set(section.getKey() - from, section.getValue());
             }
-            System.out.println("    => " + fs);
-            if (fe.action.hasDepotFile || fe.action.hasLocalFile) {
-                List<String> diffLines;
-                if (!fe.action.hasDepotFile && fe.action.hasLocalFile) {
-                    diffLines = diffLinesForAdd(p4, fe, fs);
-                } else if (fe.action.hasDepotFile && fe.action.hasLocalFile) {
-                    diffLines = diffLinesForChange(p4, fe, fs);
-                } else {
-                    diffLines = diffLinesForDelete(p4, fe, fs);
+            try {
+                depotIndices.removeAll(opened.keySet());
+                final Map<String, byte[]> depotFiles = fetchDepotFiles(fstats, depotIndices);
+                List<Integer> indices = new ArrayList<Integer>(to - from);
+                List<Fetcher.Task<SpillBuffer>> tasks = new ArrayList<Fetcher.Task<SpillBuffer>>(to - from);
+                for (int i = from; i < to; i++) {
+                    if (opened.containsKey(i)) continue;
+                    final Changelist.FileEntry fe = changelist.files.get(i);
+                    final Fstat fs = fstats.get(i);
+                    byte[] depot = fe.action.hasDepotFile ? depotBytes(depotFiles, fe, fs) : null;
+                    indices.add(i);
+                    tasks.add(new Fetcher.Task<SpillBuffer>(localSize(fs) + (depot != null ? depot.length : 0)) {
+                        public SpillBuffer call() throws IOException {
+                            return patchSection(depotFiles, fe, fs);
+                        }
+                    });
+                }
+                List<SpillBuffer> computed = fetcher.fetchAll(tasks);
+                for (int k = 0; k < indices.size(); k++) {
+                    sections.set(indices.get(k) - from, computed.get(k));
+                }
+
+                for (int i = from; i < to; i++) {
+                    Fstat fs = fstats.get(i);
+                    if (!changelist.files.get(i).type.isText) {
+                        System.out.println("    => " + fs + " (SKIPPING)");
+                        continue;
+                    }
+                    System.out.println("    => " + fs);
+                    SpillBuffer section = sections.get(i - from);
+                    if (section != null) {
+                        if (started) {
+                            out.write('\n');
+                        }
+                        section.toSource().writeTo(out);
+                        started = true;
+                    }
+                }
+            } finally {
+                for (SpillBuffer section : sections) {
+                    if (section != null) section.delete();
                 }
-                //for (String dl : diffLines) { System.out.println(dl); }
-                patchLines.add("Index: " + fs.relativePath());
-                patchLines.add("===================================================================");
-                patchLines.addAll(diffLines);
             }
         }
-        return StringUtils.join(patchLines, '\n');
+        out.flush();
     }
 
-    private static List<String> diffLinesForAdd(P4Runner p4, Changelist.FileEntry fe, Fstat fs) throws IOException {
-        List<String> diffLines = new ArrayList<String>();
-        diffLines.add("--- " +  fs.relativePath() + "\t(added)");
-        diffLines.add("+++ " + fs.relativePath() + "\t(added)");
-        List<String> localLines = Runner.readFileLines(fs.localPath);
-        String header = "@@ -0,0 +1," + localLines.size() + " @@";
-        diffLines.add(header);
-        for (String ll : localLines) {
-            diffLines.add("+" + ll);
+    /**
+     * Has the p4 client diff the edited text files among the given changelist files, when openedDiff is set and
+     * the change is pending so its files are open. The files are split into a group per fetch worker, each diffed
+     * by one 'p4 diff'. Returns the patch sections by changelist index; files left out, such as those p4 printed
+     * no complete diff for, are to be diffed here.
+     */
+    private Map<Integer, SpillBuffer> openedDiffs(final List<Fstat> fstats, List<Integer> depotIndices) throws IOException {
+        Map<Integer, SpillBuffer> sections = new HashMap<Integer, SpillBuffer>();
+        if (!openedDiff || isSubmitted()) {
+            return sections;
         }
-        return diffLines;
+        List<Integer> edits = new ArrayList<Integer>();
+        for (int i : depotIndices) {
+            Changelist.FileEntry fe = changelist.files.get(i);
+            if (fe.action.hasLocalFile && fe.type == Changelist.FileType.TEXT) edits.add(i);
+        }
+        List<Fetcher.Task<Map<String, SpillBuffer>>> tasks = new ArrayList<Fetcher.Task<Map<String, SpillBuffer>>>();
+        for (List<Integer> group : groupFiles(fstats, edits, fetcher.getWorkers())) {
+            final List<Fstat> files = new ArrayList<Fstat>(group.size());
+            for (int i : group) {
+                files.add(fstats.get(i));
+            }
+            tasks.add(new Fetcher.Task<Map<String, SpillBuffer>>(groupSize(fstats, group)) {
+                public Map<String, SpillBuffer> call() throws IOException {
+                    return OpenedDiff.readAll(p4, files, SECTION_MEMORY);
+                }
+            });
+        }
+        Map<String, SpillBuffer> byPath = new HashMap<String, SpillBuffer>();
+        for (Map<String, SpillBuffer> groupSections : fetcher.fetchAll(tasks)) {
+            byPath.putAll(groupSections);
+        }
+        for (int i : edits) {
+            SpillBuffer section = byPath.get(fstats.get(i).depotPath);
+            if (section != null) sections.put(i, section);
+        }
+        return sections;
     }
 
-    private static List<String> diffLinesForChange(P4Runner p4, Changelist.FileEntry fe, Fstat fs) throws IOException {
-        List<String> depotLines = DepotFile.readLines(p4, fs.depotPath, fe.rev);
+    /**
+     * Writes the patch section of one file into a buffer of its own, returning null for a file with none.
+     */
+    private SpillBuffer patchSection(Map<String, byte[]> depotFiles, Changelist.FileEntry fe, Fstat fs) throws IOException {
+        if (!fe.type.isText || !(fe.action.hasDepotFile || fe.action.hasLocalFile)) {
+            return null;
+        }
+        SpillBuffer section = new SpillBuffer(SECTION_MEMORY);
+        PatchWriter patch = new PatchWriter(section);
+        patch.line("Index: " + fs.relativePath());
+        patch.line("===================================================================");
+        if (!fe.action.hasDepotFile && fe.action.hasLocalFile) {
+            writeAdd(patch, fs);
+        } else if (fe.action.hasDepotFile && fe.action.hasLocalFile) {
+            writeChange(patch, depotLines(depotFiles, fe, fs), fs);
+        } else {
+            writeDelete(patch, depotBytes(depotFiles, fe, fs), fs);
+        }
+        patch.flush();
+        return section;
+    }
+
+    private static void writeAdd(PatchWriter patch, Fstat fs) throws IOException {
+        ByteBuffer local = PatchWriter.read(new File(fs.localPath));
+        patch.line("--- " +  fs.relativePath() + "\t(added)");
+        patch.line("+++ " + fs.relativePath() + "\t(added)");
+        patch.line("@@ -0,0 +1," + PatchWriter.countLines(local) + " @@");
+        patch.lines('+', local);
+    }
+
+    private static byte[] depotBytes(Map<String, byte[]> depotFiles, Changelist.FileEntry fe, Fstat fs) {
+        return depotFiles.get(DepotFile.fileRev(fs.depotPath, fe.rev));
+    }
+
+    private static List<String> depotLines(Map<String, byte[]> depotFiles, Changelist.FileEntry fe, Fstat fs) {
+        return new Runner.Output(depotBytes(depotFiles, fe, fs)).lines();
+    }
+
+    private static void writeChange(PatchWriter patch, List<String> depotLines, Fstat fs) throws IOException {
         List<String> localLines = Runner.readFileLines(fs.localPath);
-        Patch patch = DiffUtils.diff(depotLines, localLines);
         String depotTag = fs.relativePath() + "\t" + fs.change;
         String localTag = fs.relativePath() + "\t" + "\t(modified)";
-        return DiffUtils.generateUnifiedDiff(depotTag, localTag, depotLines, patch, 99999); // big number for full context
+        UnifiedDiff.write(patch.writer(), depotTag, localTag, depotLines, localLines, 99999); // big number for full context
     }
 
-    private static List<String> diffLinesForDelete(P4Runner p4, Changelist.FileEntry fe, Fstat fs) throws IOException {
-        List<String> diffLines = new ArrayList<String>();
-        diffLines.add("--- " + fs.relativePath() + "\t" + fs.change);
-        diffLines.add("+++ " + fs.relativePath() + "\t" + fs.change);
-        List<String> depotLines = DepotFile.readLines(p4, fs.depotPath, fe.rev);
-        String header = "@@ -1," + depotLines.size() + " +0,0 @@";
-        diffLines.add(header);
-        for (String dl : depotLines) {
-            diffLines.add("-" + dl);
-        }
-        return diffLines;
+    private static void writeDelete(PatchWriter patch, byte[] depotBytes, Fstat fs) throws IOException {
+        ByteBuffer depot = ByteBuffer.wrap(depotBytes);
+        patch.line("--- " + fs.relativePath() + "\t" + fs.change);
+        patch.line("+++ " + fs.relativePath() + "\t" + fs.change);
+        patch.line("@@ -1," + PatchWriter.countLines(depot) + " +0,0 @@");
+        patch.lines('-', depot);
     }
 
 }
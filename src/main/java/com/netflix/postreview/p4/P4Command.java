@@ -15,44 +15,90 @@
  */
 package com.netflix.postreview.p4;
 
-import java.util.HashMap;
+import com.netflix.postreview.Runner;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /**
  * General superclass for p4 command objects. Each subclass corresponds to a p4 command, knows how to invoke it,
  * and parse its output. This superclass helps with parsing of standard p4 ztag formatted output.
  */
 public class P4Command {
-    static Pattern ZTAG_LINE_PAT = Pattern.compile("... (\\w+) (.*)", Pattern.DOTALL);
-
-    static Map<String, String> ztagMap(String ztagOutput) {
-        String[] lines = ztagOutput.split("\\r?\\n|\\r");
-        Map<String, String> map = new HashMap<String, String>();
-        String tag = null;
-        String value = null;
-        for (String line : lines) {
-            if (line.startsWith("...")) {
-                if (tag != null) {
-                    //System.out.println(" ztag parsed: " + tag + " : " + value);
-                    map.put(tag, value);
-                    tag = null;
-                }
-                Matcher m = ZTAG_LINE_PAT.matcher(line);
-                if (m.matches()) {
-                    tag = m.group(1);
-                    value = m.group(2);
+
+    /**
+     * Runs a p4 command and reads its tagged records straight off the process output stream. The output is
+     * requested as ztag text, or as marshalled (-G) dictionaries when the runner is a P4Runner configured for it.
+     */
+    static List<P4Record> records(Runner runner, String[] args) throws IOException {
+        boolean marshalled = runner instanceof P4Runner && ((P4Runner) runner).marshalled;
+        String[] command = new String[args.length + 2];
+        command[0] = "p4";
+        command[1] = marshalled ? "-G" : "-ztag";
+        System.arraycopy(args, 0, command, 2, args.length);
+        return marshalled ? marshalRecords(runner, command) : ztagRecords(runner, command);
+    }
+
+    /**
+     * Runs a p4 command that produces a single record, returning null if it produced none.
+     */
+    static P4Record record(Runner runner, String[] args) throws IOException {
+        List<P4Record> records = records(runner, args);
+        return records.isEmpty() ? null : records.get(0);
+    }
+
+    private static List<P4Record> ztagRecords(Runner runner, String[] command) throws IOException {
+        Process process = runner.start(command);
+        try {
+            ZtagReader ztag = new ZtagReader(process.getInputStream());
+            List<P4Record> records = ztag.readAll();
+            checkExit(process, command, ztag.strays());
+            return records;
+        } finally {
+            Runner.close(process);
+        }
+    }
+
+    private static List<P4Record> marshalRecords(Runner runner, String[] command) throws IOException {
+        Process process = runner.start(command, false);
+        Runner.drain(process.getErrorStream());
+        try {
+            P4Marshal marshal = new P4Marshal(process.getInputStream());
+            List<P4Record> records = new ArrayList<P4Record>();
+            Map<String, Object> dict;
+            while ((dict = marshal.readRecord()) != null) {
+                String code = P4Marshal.string(dict, "code");
+                if ("error".equals(code)) {
+                    throw new IOException("p4 error: " + P4Marshal.string(dict, "data"));
                 }
-            } else {
-                value = value + "\n" + line;
+                records.add(toRecord(dict));
             }
+            checkExit(process, command, "");
+            return records;
+        } finally {
+            Runner.close(process);
+        }
+    }
+
+    static P4Record toRecord(Map<String, Object> dict) {
+        P4Record rec = new P4Record();
+        for (String key : dict.keySet()) {
+            if (!key.equals("code")) rec.put(key, P4Marshal.string(dict, key));
         }
-        if (tag != null) {
-            //System.out.println(" ztag parsed: " + tag + " : " + value);
-            map.put(tag, value);
+        return rec;
+    }
+
+    private static void checkExit(Process process, String[] command, String output) throws IOException {
+        try {
+            int exitValue = process.waitFor();
+            if (exitValue != 0) {
+                throw new IOException("Non-zero exit code " + exitValue + ":\n" + output);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted running: " + command[0], e);
         }
-        return map;
     }
 
     protected static int parseInt0(String s) {
@@ -0,0 +1,146 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview.p4;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reader for the marshalled dictionaries p4 writes when given the -G global option. Each record is a Python
+ * marshal (version 0) dict of string keys to string or integer values, read straight off the process byte stream.
+ * String values are kept as raw bytes so file content comes through exactly; use string() to decode them.
+ */
+public class P4Marshal {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final InputStream in;
+    private final byte[] buf = new byte[64 * 1024];
+    private int pos;
+    private int limit;
+
+    public P4Marshal(InputStream in) {
+        this.in = in;
+    }
+
+    /**
+     * Refills the buffer, returning false at the end of the stream.
+     */
+    private boolean fill() throws IOException {
+        int n;
+        do {
+            n = in.read(buf, 0, buf.length);
+        } while (n == 0);
+        if (n == -1) return false;
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    /**
+     * Reads the next record, or returns null at the end of the stream.
+     */
+    public Map<String, Object> readRecord() throws IOException {
+        if (pos == limit && !fill()) {
+            return null;
+        }
+        int type = buf[pos++] & 0xff;
+        if (type != '{') {
+            throw new IOException("Unexpected p4 marshal record type: " + (char) type);
+        }
+        Map<String, Object> record = new LinkedHashMap<String, Object>();
+        while (true) {
+            int keyType = readByte();
+            if (keyType == '0') {
+                return record;
+            }
+            Object key = readValue(keyType);
+            record.put(key instanceof byte[] ? decode((byte[]) key) : key.toString(), readValue(readByte()));
+        }
+    }
+
+    private Object readValue(int type) throws IOException {
+        switch (type) {
+            case 's':
+            case 'u':
+            case 't':
+                byte[] bytes = new byte[readInt()];
+                readFully(bytes);
+                return bytes;
+            case 'i':
+                return readInt();
+            case 'N':
+                return null;
+            case 'T':
+                return Boolean.TRUE;
+            case 'F':
+                return Boolean.FALSE;
+            default:
+                throw new IOException("Unsupported p4 marshal value type: " + (char) type);
+        }
+    }
+
+    private int readByte() throws IOException {
+        if (pos == limit && !fill()) throw new EOFException("Truncated p4 marshal record");
+        return buf[pos++] & 0xff;
+    }
+
+    private int readInt() throws IOException {
+        if (limit - pos >= 4) {
+            int i = (buf[pos] & 0xff) | ((buf[pos + 1] & 0xff) << 8) | ((buf[pos + 2] & 0xff) << 16) | (buf[pos + 3] << 24);
+            pos += 4;
+            return i;
+        }
+        return readByte() | (readByte() << 8) | (readByte() << 16) | (readByte() << 24);
+    }
+
+    private void readFully(byte[] bytes) throws IOException {
+        int off = 0;
+        while (off < bytes.length) {
+            if (pos == limit && !fill()) throw new EOFException("Truncated p4 marshal value");
+            int n = Math.min(bytes.length - off, limit - pos);
+            System.arraycopy(buf, pos, bytes, off, n);
+            pos += n;
+            off += n;
+        }
+    }
+
+    private static String decode(byte[] bytes) {
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Returns a record value as a String, decoding bytes as UTF-8, or null if absent.
+     */
+    public static String string(Map<String, Object> record, String key) {
+        Object value = record.get(key);
+        if (value == null) return null;
+        return value instanceof byte[] ? decode((byte[]) value) : value.toString();
+    }
+
+    /**
+     * Returns a record value as raw bytes, or null if absent.
+     */
+    public static byte[] bytes(Map<String, Object> record, String key) {
+        Object value = record.get(key);
+        if (value == null) return null;
+        return value instanceof byte[] ? (byte[]) value : value.toString().getBytes();
+    }
+
+}
@@ -0,0 +1,70 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview.p4;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A single tagged record of p4 output, as read from either ztag text or marshalled (-G) output. Indexed tags like
+ * "depotFile0" are also available by name and index.
+ */
+public class P4Record {
+    private final Map<String, String> fields = new HashMap<String, String>();
+    private final Map<String, List<String>> indexed = new HashMap<String, List<String>>();
+
+    public String get(String tag) { return fields.get(tag); }
+
+    public String get(String tag, int index) {
+        List<String> values = indexed.get(tag);
+        return values != null && index < values.size() ? values.get(index) : null;
+    }
+
+    /** Returns the number of indexed values for a tag, e.g. how many depotFileN entries there are. */
+    public int count(String tag) {
+        List<String> values = indexed.get(tag);
+        return values != null ? values.size() : 0;
+    }
+
+    public boolean containsKey(String tag) { return fields.containsKey(tag); }
+
+    public int size() { return fields.size(); }
+
+    public Map<String, String> asMap() { return Collections.unmodifiableMap(fields); }
+
+    void put(String tag, String value) {
+        fields.put(tag, value);
+        int i = tag.length();
+        while (i > 0 && Character.isDigit(tag.charAt(i - 1))) i--;
+        if (i > 0 && i < tag.length() && tag.length() - i < 10) {
+            String name = tag.substring(0, i);
+            int index = Integer.parseInt(tag.substring(i));
+            List<String> values = indexed.get(name);
+            if (values == null) {
+                values = new ArrayList<String>();
+                indexed.put(name, values);
+            }
+            while (values.size() <= index) values.add(null);
+            values.set(index, value);
+        }
+    }
+
+    @Override public String toString() { return fields.toString(); }
+
+}
@@ -23,10 +23,22 @@ import java.io.IOException;
  * Variant of Runner tailored for invoking p4
  */
 public class P4Runner extends Runner {
+
+    /** When set, p4 commands are read as marshalled (-G) output instead of ztag text. */
+    final boolean marshalled;
+
+    private final String port;
+
     /**
      * Requires environment variables (P4USER, P4CLIENT, P4PORT, P4PASSWD)
      */
     public P4Runner(String port, String client, String user, String passwd) throws IOException {
+        this(port, client, user, passwd, false);
+    }
+
+    public P4Runner(String port, String client, String user, String passwd, boolean marshalled) throws IOException {
+        this.marshalled = marshalled;
+        this.port = port;
         if (port != null) environment.put("P4PORT", port);
         if (client != null) environment.put("P4CLIENT", client);
         if (user != null) environment.put("P4USER", user);
@@ -37,4 +49,11 @@ public class P4Runner extends Runner {
         if (c == null) throw new IOException("Client not found: " + client);
     }
 
+    /**
+     * Depot revisions are only unique within a server.
+     */
+    @Override protected String cacheNamespace() {
+        return "p4:" + port;
+    }
+
 }
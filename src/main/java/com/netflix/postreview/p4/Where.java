@@ -18,7 +18,6 @@ package com.netflix.postreview.p4;
 import com.netflix.postreview.Runner;
 
 import java.io.IOException;
-import java.util.Map;
 
 /**
  * Representation of the 'p4 where' command and its results.
@@ -31,7 +30,7 @@ public class Where extends P4Command {
     public final String localPath;
 
     public static Where invokeWith(Runner runner, String path) throws IOException {
-        return fromZtag(runner.execAndReadString(commandFor(path)));
+        return fromRecord(record(runner, commandFor(path)));
     }
 
     @Override public String toString() {
@@ -45,15 +44,14 @@ public class Where extends P4Command {
     }
 
     private static String[] commandFor(String path) {
-        return new String[] { "p4", "-ztag", "where", path };
+        return new String[] { "where", path };
     }
 
-    private static Where fromZtag(String ztag) {
-        Map<String, String> zmap = ztagMap(ztag);
-        if (zmap.size() == 0) {
+    private static Where fromRecord(P4Record rec) {
+        if (rec == null) {
             return null;
         }
-        return new Where(zmap.get("depotFile"), zmap.get("clientFile"), zmap.get("path"));
+        return new Where(rec.get("depotFile"), rec.get("clientFile"), rec.get("path"));
     }
 
 }
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview.p4;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Streaming reader for p4 -ztag output. Consumes the process output a line at a time and returns one record at a
+ * time, so multi-record output (fstat of many files) never has to be held as a whole. A tag that repeats within a
+ * record starts the next record.
+ */
+public class ZtagReader {
+    private final BufferedReader reader;
+    private final StringBuilder strays = new StringBuilder();
+    private String pending;  // tag line read ahead that starts the next record
+
+    public ZtagReader(InputStream in) {
+        reader = new BufferedReader(new InputStreamReader(in), 64 * 1024);
+    }
+
+    /**
+     * Returns the next record, or null when the output is exhausted.
+     */
+    public P4Record next() throws IOException {
+        P4Record record = new P4Record();
+        String tag = null;
+        StringBuilder value = null;
+        int blanks = 0;
+        String line = pending;
+        pending = null;
+        if (line == null) line = reader.readLine();
+        for (; line != null; line = reader.readLine()) {
+            if (line.length() == 0) {
+                blanks++;
+            } else if (line.startsWith("... ")) {
+                int sp = line.indexOf(' ', 4);
+                String newTag = sp >= 0 ? line.substring(4, sp) : line.substring(4);
+                if (newTag.equals(tag) || record.containsKey(newTag)) {
+                    pending = line;  // repeated tag: this record is complete
+                    break;
+                }
+                if (tag != null) {
+                    for (; blanks > 0; blanks--) value.append('\n');
+                    record.put(tag, value.toString());
+                }
+                blanks = 0;
+                tag = newTag;
+                value = new StringBuilder(sp >= 0 ? line.substring(sp + 1) : "");
+            } else if (tag != null) {
+                for (; blanks > 0; blanks--) value.append('\n');
+                value.append('\n').append(line);
+            } else {
+                strays.append(line).append('\n');  // error or info text outside of any tag
+            }
+        }
+        if (tag != null) {
+            record.put(tag, value.toString());
+        }
+        if (record.size() == 0) {
+            reader.close();
+            return null;
+        }
+        return record;
+    }
+
+    /**
+     * Reads all remaining records.
+     */
+    public List<P4Record> readAll() throws IOException {
+        List<P4Record> records = new ArrayList<P4Record>();
+        P4Record record;
+        while ((record = next()) != null) {
+            records.add(record);
+        }
+        return records;
+    }
+
+    /**
+     * Returns any untagged output seen so far, usually p4 error messages.
+     */
+    public String strays() { return strays.toString(); }
+
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ReviewIndexTest {
+    private static final String SCOPE = "http://crucible|joe";
+
+    private static ReviewIndex empty() {
+        return ReviewIndex.load(new File("does-not-exist.properties"), 60 * 1000);
+    }
+
+    @Test
+    public void missingRelatedChangeDoesNotHideReview() {
+        ReviewIndex index = empty();
+        index.putMissing(SCOPE, "1234");
+        index.put(SCOPE, "12", "CR-5");
+        assertEquals("CR-5", index.find(SCOPE, "123"));
+        assertFalse(index.isKnownMissing(SCOPE, "123"));
+        assertTrue(index.isKnownMissing(SCOPE, "1234"));
+    }
+
+    @Test
+    public void exactAndLongestPrefixWin() {
+        ReviewIndex index = empty();
+        index.put(SCOPE, "1", "CR-1");
+        index.put(SCOPE, "123", "CR-3");
+        assertEquals("CR-3", index.find(SCOPE, "1234"));
+        index.put(SCOPE, "1234", "CR-4");
+        assertEquals("CR-4", index.find(SCOPE, "1234"));
+        assertNull(index.find("http://other|joe", "1234"));
+    }
+
+    @Test
+    public void removeLeavesRelatedChanges() {
+        ReviewIndex index = empty();
+        index.put(SCOPE, "12", "CR-5");
+        index.put(SCOPE, "123", "CR-6");
+        index.remove(SCOPE, "123");
+        assertEquals("CR-5", index.find(SCOPE, "123"));
+        index.put(SCOPE, "1234", "CR-6");
+        index.removeReview(SCOPE, "CR-5");
+        assertEquals("CR-6", index.find(SCOPE, "123"));
+        assertEquals("CR-6", index.find(SCOPE, "12"));
+    }
+
+}
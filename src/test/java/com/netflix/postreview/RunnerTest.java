@@ -0,0 +1,59 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class RunnerTest {
+
+    private static byte[] filled(int length, char c) {
+        byte[] bytes = new byte[length];
+        Arrays.fill(bytes, (byte) c);
+        return bytes;
+    }
+
+    private static byte[] read(byte[] content, int sizeHint) throws IOException {
+        return Runner.readAll(new ByteArrayInputStream(content), sizeHint).bytes();
+    }
+
+    @Test
+    public void exactChunkSizedHintIsNotReused() throws IOException {
+        byte[] a = filled(64 * 1024, 'A');
+        byte[] first = read(a, a.length);
+        read(filled(70000, 'B'), 0);
+        read(filled(70000, 'C'), 0);
+        assertArrayEquals(a, first);
+    }
+
+    @Test
+    public void readsAroundTheHint() throws IOException {
+        byte[] content = filled(200000, 'x');
+        content[0] = 'a';
+        content[content.length - 1] = 'z';
+        assertArrayEquals(content, read(content, 0));
+        assertArrayEquals(content, read(content, 1000));
+        assertArrayEquals(content, read(content, content.length));
+        assertArrayEquals(content, read(content, content.length + 1));
+        assertArrayEquals(new byte[0], read(new byte[0], 16));
+    }
+
+}
@@ -0,0 +1,90 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import difflib.DiffUtils;
+import difflib.Patch;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Rough benchmark of UnifiedDiff versus java-diff-utils producing the full context diff that patch mode uploads,
+ * on a pair of real files or on a synthetic large generated file with scattered edits.
+ * Run with: java -cp build/classes/main:build/classes/test:diffutils.jar com.netflix.postreview.UnifiedDiffBenchmark
+ * [original revised | lines]
+ */
+public class UnifiedDiffBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        List<String> original;
+        List<String> revised;
+        if (args.length == 2) {
+            original = Runner.readFileLines(args[0]);
+            revised = Runner.readFileLines(args[1]);
+        } else {
+            original = generated(args.length > 0 ? Integer.parseInt(args[0]) : 50000);
+            revised = edited(original, original.size() / 10);
+        }
+        System.out.println("diff of " + original.size() + " to " + revised.size() + " lines");
+
+        for (int round = 0; round < 5; round++) {
+            long t0 = System.nanoTime();
+            Patch patch = DiffUtils.diff(original, revised);
+            List<String> lines = DiffUtils.generateUnifiedDiff("original", "revised", original, patch, 99999);
+            StringBuilder diffUtils = new StringBuilder();
+            for (String line : lines) {
+                diffUtils.append('\n').append(line);
+            }
+            long t1 = System.nanoTime();
+            StringWriter unified = new StringWriter();
+            UnifiedDiff.write(unified, "original", "revised", original, revised, 99999);
+            long t2 = System.nanoTime();
+            System.out.println("round " + round + ": java-diff-utils " + (t1 - t0) / 1000000 + " ms, UnifiedDiff "
+                    + (t2 - t1) / 1000000 + " ms, " + unified.getBuffer().length() + " chars, "
+                    + (diffUtils.toString().equals(unified.toString()) ? "same output" : "different output"));
+        }
+    }
+
+    private static List<String> generated(int count) {
+        List<String> lines = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add(i % 10 == 9 ? "    }" : "    public static final int GENERATED_" + i + " = " + (i % 97) + ";");
+        }
+        return lines;
+    }
+
+    private static List<String> edited(List<String> original, int edits) {
+        Random random = new Random(42);
+        List<String> lines = new ArrayList<String>(original);
+        for (int e = 0; e < edits; e++) {
+            int at = random.nextInt(lines.size());
+            double op = random.nextDouble();
+            if (op < 0.4) {
+                lines.set(at, "    // edited " + e);
+            } else if (op < 0.7) {
+                lines.add(at, "    // inserted " + e);
+            } else {
+                lines.remove(at);
+            }
+        }
+        return lines;
+    }
+
+}
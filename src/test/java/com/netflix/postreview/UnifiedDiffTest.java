@@ -0,0 +1,238 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview;
+
+import difflib.DiffUtils;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class UnifiedDiffTest {
+    private static final Pattern HUNK_PAT = Pattern.compile("@@ -(\\d+),(\\d+) \\+(\\d+),(\\d+) @@");
+
+    private static String unified(List<String> original, List<String> revised, int context) throws IOException {
+        StringWriter out = new StringWriter();
+        UnifiedDiff.write(out, "original", "revised", original, revised, context);
+        return out.toString();
+    }
+
+    private static String diffUtils(List<String> original, List<String> revised, int context) {
+        StringBuilder sb = new StringBuilder();
+        for (String line : DiffUtils.generateUnifiedDiff("original", "revised", original,
+                DiffUtils.diff(original, revised), context)) {
+            sb.append('\n').append(line);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Applies diff output to the original lines, checking every context and removed line and every hunk count
+     * along the way, and returns the patched lines.
+     */
+    private static List<String> apply(List<String> original, String diff) {
+        List<String> lines = Arrays.asList(diff.split("\n", -1));
+        assertEquals("", lines.get(0));
+        assertEquals("--- original", lines.get(1));
+        assertEquals("+++ revised", lines.get(2));
+        List<String> patched = new ArrayList<String>();
+        int pos = 0;
+        int i = 3;
+        while (i < lines.size()) {
+            Matcher m = HUNK_PAT.matcher(lines.get(i++));
+            assertTrue("hunk header expected: " + lines.get(i - 1), m.matches());
+            int start = Integer.parseInt(m.group(1)) - 1;
+            int originalCount = Integer.parseInt(m.group(2));
+            int revisedCount = Integer.parseInt(m.group(4));
+            assertTrue("hunks out of order", start >= pos);
+            patched.addAll(original.subList(pos, start));
+            pos = start;
+            int originalSeen = 0;
+            int revisedSeen = 0;
+            while (i < lines.size() && !lines.get(i).startsWith("@@ ")) {
+                String line = lines.get(i++);
+                String text = line.substring(1);
+                if (line.charAt(0) == '+') {
+                    patched.add(text);
+                    revisedSeen++;
+                } else {
+                    assertEquals(original.get(pos++), text);
+                    originalSeen++;
+                    if (line.charAt(0) == ' ') {
+                        patched.add(text);
+                        revisedSeen++;
+                    } else {
+                        assertEquals('-', line.charAt(0));
+                    }
+                }
+            }
+            assertEquals(originalCount, originalSeen);
+            assertEquals(revisedCount, revisedSeen);
+        }
+        patched.addAll(original.subList(pos, original.size()));
+        return patched;
+    }
+
+    private static List<String> lines(String... lines) {
+        return Arrays.asList(lines);
+    }
+
+    private static List<String> numbered(int count) {
+        List<String> lines = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add("line " + i);
+        }
+        return lines;
+    }
+
+    /**
+     * Returns lines drawn from a small alphabet, so that most lines repeat and many edit scripts are equally short.
+     */
+    private static List<String> random(Random random, int count, int alphabet) {
+        List<String> lines = new ArrayList<String>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add(Integer.toString(random.nextInt(alphabet)));
+        }
+        return lines;
+    }
+
+    private static List<String> edited(Random random, List<String> original, int edits, int alphabet) {
+        List<String> lines = new ArrayList<String>(original);
+        for (int e = 0; e < edits; e++) {
+            int at = random.nextInt(lines.size() + 1);
+            int op = random.nextInt(3);
+            if (op == 0 && at < lines.size()) {
+                lines.set(at, Integer.toString(random.nextInt(alphabet)));
+            } else if (op == 1 || at == lines.size()) {
+                lines.add(at, Integer.toString(random.nextInt(alphabet)));
+            } else {
+                lines.remove(at);
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void equalInputsWriteNothing() throws IOException {
+        StringWriter out = new StringWriter();
+        assertFalse(UnifiedDiff.write(out, "original", "revised", numbered(10), numbered(10), 3));
+        assertEquals("", out.toString());
+        assertFalse(UnifiedDiff.write(out, "original", "revised", lines(), lines(), 3));
+        assertEquals("", out.toString());
+    }
+
+    @Test
+    public void randomDiffsApply() throws IOException {
+        Random random = new Random(42);
+        for (int round = 0; round < 3000; round++) {
+            int alphabet = 2 + random.nextInt(round % 3 == 0 ? 4 : 200);
+            List<String> original = random(random, random.nextInt(round % 10 == 0 ? 2000 : 60), alphabet);
+            List<String> revised = edited(random, original, random.nextInt(20), alphabet);
+            if (original.equals(revised)) {
+                continue;
+            }
+            for (int context : new int[] {0, 3, 99999}) {
+                assertEquals("round " + round + ", context " + context,
+                        revised, apply(original, unified(original, revised, context)));
+            }
+        }
+    }
+
+    @Test
+    public void repetitiveRegionsApply() throws IOException {
+        // More than MAX_CHAIN copies of every line, so anchoring gives up and the Myers fallback diffs the region
+        Random random = new Random(7);
+        List<String> original = new ArrayList<String>();
+        for (int i = 0; i < 600; i++) {
+            original.add(i % 3 == 0 ? "}" : i % 3 == 1 ? "" : "    return;");
+        }
+        List<String> revised = edited(random, original, 40, 3);
+        assertEquals(revised, apply(original, unified(original, revised, 3)));
+    }
+
+    /**
+     * Cases where only one shortest edit script exists, so the whole output must match java-diff-utils, hunk
+     * header arithmetic included.
+     */
+    @Test
+    public void matchesDiffUtilsFormat() throws IOException {
+        List<String> base = numbered(20);
+        List<List<String>> revisions = new ArrayList<List<String>>();
+
+        List<String> changedFirst = new ArrayList<String>(base);
+        changedFirst.set(0, "changed");
+        revisions.add(changedFirst);
+
+        List<String> changedLast = new ArrayList<String>(base);
+        changedLast.set(19, "changed");
+        revisions.add(changedLast);
+
+        List<String> insertedTop = new ArrayList<String>(base);
+        insertedTop.add(0, "inserted");
+        revisions.add(insertedTop);
+
+        List<String> appended = new ArrayList<String>(base);
+        appended.add("appended");
+        revisions.add(appended);
+
+        List<String> removedMiddle = new ArrayList<String>(base);
+        removedMiddle.remove(10);
+        revisions.add(removedMiddle);
+
+        List<String> removedLast = new ArrayList<String>(base);
+        removedLast.remove(19);
+        revisions.add(removedLast);
+
+        List<String> twoApart = new ArrayList<String>(base);
+        twoApart.set(2, "first");
+        twoApart.set(17, "second");
+        revisions.add(twoApart);
+
+        List<String> twoClose = new ArrayList<String>(base);
+        twoClose.set(8, "first");
+        twoClose.set(14, "second");
+        revisions.add(twoClose);
+
+        List<String> twoAdjacentContext = new ArrayList<String>(base);
+        twoAdjacentContext.set(5, "first");
+        twoAdjacentContext.set(12, "second");
+        revisions.add(twoAdjacentContext);
+
+        revisions.add(Collections.<String>emptyList());
+        revisions.add(lines("a", "b", "c"));
+
+        for (List<String> revised : revisions) {
+            for (int context : new int[] {0, 1, 3, 99999}) {
+                assertEquals(diffUtils(base, revised, context), unified(base, revised, context));
+            }
+        }
+        for (int context : new int[] {0, 3}) {
+            assertEquals(diffUtils(lines(), base, context), unified(lines(), base, context));
+        }
+    }
+
+}
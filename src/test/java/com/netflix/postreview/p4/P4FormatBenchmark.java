@@ -0,0 +1,103 @@
+/**
+ * Copyright 2013 Netflix, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.netflix.postreview.p4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Rough benchmark of ztag text parsing versus marshalled (-G) decoding on a synthetic large 'p4 describe'.
+ * Run with: java -cp build/classes/main:build/classes/test com.netflix.postreview.p4.P4FormatBenchmark [files]
+ */
+public class P4FormatBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int descLines = files / 4;
+        byte[] ztag = ztagDescribe(files, descLines);
+        byte[] marshal = marshalDescribe(files, descLines);
+        System.out.println("describe of " + files + " files: ztag " + ztag.length + " bytes, -G " + marshal.length + " bytes");
+
+        for (int round = 0; round < 5; round++) {
+            long t0 = System.nanoTime();
+            P4Record z = new ZtagReader(new ByteArrayInputStream(ztag)).next();
+            long t1 = System.nanoTime();
+            P4Record m = P4Command.toRecord(new P4Marshal(new ByteArrayInputStream(marshal)).readRecord());
+            long t2 = System.nanoTime();
+            System.out.println("round " + round + ": ztag " + (t1 - t0) / 1000000 + " ms (" + z.count("depotFile")
+                    + " files), -G " + (t2 - t1) / 1000000 + " ms (" + m.count("depotFile") + " files)");
+        }
+    }
+
+    private static byte[] ztagDescribe(int files, int descLines) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append("... change 123456\n... user someone\n... client someone-ws\n... time 1365000000\n... desc ");
+        for (int i = 0; i < descLines; i++) {
+            sb.append("Description line ").append(i).append(" of a long generated change\n");
+        }
+        sb.append("\n... status pending\n... changeType public\n");
+        for (int i = 0; i < files; i++) {
+            sb.append("... depotFile").append(i).append(" //depot/project/src/main/java/File").append(i).append(".java\n");
+            sb.append("... action").append(i).append(" edit\n");
+            sb.append("... type").append(i).append(" text\n");
+            sb.append("... rev").append(i).append(" ").append(i % 50 + 1).append("\n");
+        }
+        sb.append("\n");
+        return sb.toString().getBytes("UTF-8");
+    }
+
+    private static byte[] marshalDescribe(int files, int descLines) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write('{');
+        entry(out, "code", "stat");
+        entry(out, "change", "123456");
+        entry(out, "user", "someone");
+        entry(out, "client", "someone-ws");
+        entry(out, "time", "1365000000");
+        StringBuilder desc = new StringBuilder();
+        for (int i = 0; i < descLines; i++) {
+            desc.append("Description line ").append(i).append(" of a long generated change\n");
+        }
+        entry(out, "desc", desc.toString());
+        entry(out, "status", "pending");
+        entry(out, "changeType", "public");
+        for (int i = 0; i < files; i++) {
+            entry(out, "depotFile" + i, "//depot/project/src/main/java/File" + i + ".java");
+            entry(out, "action" + i, "edit");
+            entry(out, "type" + i, "text");
+            entry(out, "rev" + i, Integer.toString(i % 50 + 1));
+        }
+        out.write('0');
+        return out.toByteArray();
+    }
+
+    private static void entry(ByteArrayOutputStream out, String key, String value) throws IOException {
+        string(out, key);
+        string(out, value);
+    }
+
+    private static void string(ByteArrayOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes("UTF-8");
+        out.write('s');
+        out.write(bytes.length & 0xff);
+        out.write((bytes.length >> 8) & 0xff);
+        out.write((bytes.length >> 16) & 0xff);
+        out.write((bytes.length >> 24) & 0xff);
+        out.write(bytes);
+    }
+
+}